@@ -31,6 +31,7 @@
 #include "android_runtime/AndroidRuntime.h"
 
 #include <string.h>
+#include <pthread.h>
 
 #include <cutils/log.h>
 #define info(fmt, ...)  ALOGI ("%s(L%d): " fmt,__FUNCTION__, __LINE__,  ## __VA_ARGS__)
@@ -142,6 +143,7 @@ namespace android {
 
 static jmethodID method_onClientRegistered;
 static jmethodID method_onScanResult;
+static jmethodID method_onScanResultsAvailable;
 static jmethodID method_onConnected;
 static jmethodID method_onDisconnected;
 static jmethodID method_onReadCharacteristic;
@@ -185,6 +187,29 @@ static const btgatt_interface_t *sGattIf = NULL;
 static jobject mCallbacksObj = NULL;
 static JNIEnv *sCallbackEnv = NULL;
 
+/**
+ * Scan result ring shared with GattService (see ScanResultRing.java).
+ * Slots are filled by the callback thread and consumed on the Java side;
+ * head and tail are free running counters.
+ */
+
+#define SCAN_RING_SLOT_SIZE       80
+#define SCAN_RING_ADDRESS_OFFSET  0
+#define SCAN_RING_RSSI_OFFSET     8
+#define SCAN_RING_LENGTH_OFFSET   12
+#define SCAN_RING_DATA_OFFSET     16
+#define SCAN_RING_DATA_LEN        62
+
+// Held by the scan result callback while it uses the ring, so the ring
+// cannot be replaced or released underneath it
+static pthread_mutex_t sScanRingLock = PTHREAD_MUTEX_INITIALIZER;
+static jobject sScanRingObj = NULL;
+static uint8_t *sScanRing = NULL;
+static uint32_t sScanRingSlots = 0;
+static volatile uint32_t sScanRingHead = 0;
+static volatile uint32_t sScanRingTail = 0;
+static volatile uint32_t sScanRingDropped = 0;
+
 static bool checkCallbackThread() {
     sCallbackEnv = getCallbackEnv();
 
@@ -205,10 +230,56 @@ void btgattc_register_app_cb(int status, int clientIf, bt_uuid_t *app_uuid)
     checkAndClearExceptionFromCallback(sCallbackEnv, __FUNCTION__);
 }
 
+// Called with sScanRingLock held. Returns true if the Java side must be
+// signalled.
+static bool scan_ring_put(bt_bdaddr_t* bda, int rssi, uint8_t* adv_data)
+{
+    uint32_t head = sScanRingHead;
+    if (head - sScanRingTail >= sScanRingSlots) {
+        ++sScanRingDropped; // Ring full, drop
+        return false;
+    }
+
+    uint8_t *slot = sScanRing + (head % sScanRingSlots) * SCAN_RING_SLOT_SIZE;
+
+    int64_t address = 0;
+    for (int i = 0; i != BD_ADDR_LEN; ++i)
+        address = (address << 8) | bda->address[i];
+
+    int32_t value = rssi;
+    memcpy(slot + SCAN_RING_ADDRESS_OFFSET, &address, sizeof(address));
+    memcpy(slot + SCAN_RING_RSSI_OFFSET, &value, sizeof(value));
+    value = SCAN_RING_DATA_LEN;
+    memcpy(slot + SCAN_RING_LENGTH_OFFSET, &value, sizeof(value));
+    memcpy(slot + SCAN_RING_DATA_OFFSET, adv_data, SCAN_RING_DATA_LEN);
+
+    __sync_synchronize();
+    sScanRingHead = head + 1;
+    __sync_synchronize();
+
+    // Only signal the transition from empty; the Java side drains until
+    // it catches up with the head.
+    return sScanRingTail == head;
+}
+
 void btgattc_scan_result_cb(bt_bdaddr_t* bda, int rssi, uint8_t* adv_data)
 {
     CHECK_CALLBACK_ENV
 
+    pthread_mutex_lock(&sScanRingLock);
+    if (sScanRing != NULL)
+    {
+        bool signal = scan_ring_put(bda, rssi, adv_data);
+        pthread_mutex_unlock(&sScanRingLock);
+        if (signal)
+        {
+            sCallbackEnv->CallVoidMethod(mCallbacksObj, method_onScanResultsAvailable);
+            checkAndClearExceptionFromCallback(sCallbackEnv, __FUNCTION__);
+        }
+        return;
+    }
+    pthread_mutex_unlock(&sScanRingLock);
+
     char c_address[32];
     snprintf(c_address, sizeof(c_address),"%02X:%02X:%02X:%02X:%02X:%02X",
         bda->address[0], bda->address[1], bda->address[2],
@@ -649,6 +720,7 @@ static void classInitNative(JNIEnv* env, jclass clazz) {
 
     method_onClientRegistered = env->GetMethodID(clazz, "onClientRegistered", "(IIJJ)V");
     method_onScanResult = env->GetMethodID(clazz, "onScanResult", "(Ljava/lang/String;I[B)V");
+    method_onScanResultsAvailable = env->GetMethodID(clazz, "onScanResultsAvailable", "()V");
     method_onConnected   = env->GetMethodID(clazz, "onConnected", "(IIILjava/lang/String;)V");
     method_onDisconnected = env->GetMethodID(clazz, "onDisconnected", "(IIILjava/lang/String;)V");
     method_onReadCharacteristic = env->GetMethodID(clazz, "onReadCharacteristic", "(IIIIJJIJJI[B)V");
@@ -724,6 +796,20 @@ static void initializeNative(JNIEnv *env, jobject object) {
     mCallbacksObj = env->NewGlobalRef(object);
 }
 
+// Called with sScanRingLock held
+static void releaseScanRing(JNIEnv *env) {
+    sScanRing = NULL;
+    sScanRingSlots = 0;
+    sScanRingHead = 0;
+    sScanRingTail = 0;
+    sScanRingDropped = 0;
+
+    if (sScanRingObj != NULL) {
+        env->DeleteGlobalRef(sScanRingObj);
+        sScanRingObj = NULL;
+    }
+}
+
 static void cleanupNative(JNIEnv *env, jobject object) {
     bt_status_t status;
     if (!btIf) return;
@@ -733,6 +819,11 @@ static void cleanupNative(JNIEnv *env, jobject object) {
         sGattIf = NULL;
     }
 
+    // No more scan results arrive once the interface is cleaned up
+    pthread_mutex_lock(&sScanRingLock);
+    releaseScanRing(env);
+    pthread_mutex_unlock(&sScanRingLock);
+
     if (mCallbacksObj != NULL) {
         env->DeleteGlobalRef(mCallbacksObj);
         mCallbacksObj = NULL;
@@ -752,6 +843,50 @@ static int gattClientGetDeviceTypeNative(JNIEnv* env, jobject object, jstring ad
     return sGattIf->client->get_device_type(&bda);
 }
 
+static void gattClientSetScanRingNative(JNIEnv* env, jobject object,
+                                        jobject ring, jint slots)
+{
+    pthread_mutex_lock(&sScanRingLock);
+    releaseScanRing(env);
+    if (ring == NULL || slots <= 0) {
+        pthread_mutex_unlock(&sScanRingLock);
+        return;
+    }
+
+    uint8_t *buffer = (uint8_t *) env->GetDirectBufferAddress(ring);
+    if (buffer == NULL ||
+        env->GetDirectBufferCapacity(ring) < (jlong) slots * SCAN_RING_SLOT_SIZE)
+    {
+        pthread_mutex_unlock(&sScanRingLock);
+        error("Invalid scan result ring");
+        return;
+    }
+
+    sScanRingObj = env->NewGlobalRef(ring);
+    sScanRingSlots = slots;
+    sScanRing = buffer;
+    pthread_mutex_unlock(&sScanRingLock);
+}
+
+static jint gattClientGetScanRingHeadNative(JNIEnv* env, jobject object)
+{
+    __sync_synchronize();
+    return sScanRingHead;
+}
+
+static jint gattClientGetScanRingDroppedNative(JNIEnv* env, jobject object)
+{
+    __sync_synchronize();
+    return sScanRingDropped;
+}
+
+static void gattClientSetScanRingTailNative(JNIEnv* env, jobject object, jint tail)
+{
+    __sync_synchronize();
+    sScanRingTail = tail;
+    __sync_synchronize();
+}
+
 static void gattClientRegisterAppNative(JNIEnv* env, jobject object,
                                         jlong app_uuid_lsb, jlong app_uuid_msb )
 {
@@ -1278,6 +1413,10 @@ static JNINativeMethod sMethods[] = {
     {"gattClientRegisterAppNative", "(JJ)V", (void *) gattClientRegisterAppNative},
     {"gattClientUnregisterAppNative", "(I)V", (void *) gattClientUnregisterAppNative},
     {"gattClientScanNative", "(IZ)V", (void *) gattClientScanNative},
+    {"gattClientSetScanRingNative", "(Ljava/nio/ByteBuffer;I)V", (void *) gattClientSetScanRingNative},
+    {"gattClientGetScanRingHeadNative", "()I", (void *) gattClientGetScanRingHeadNative},
+    {"gattClientSetScanRingTailNative", "(I)V", (void *) gattClientSetScanRingTailNative},
+    {"gattClientGetScanRingDroppedNative", "()I", (void *) gattClientGetScanRingDroppedNative},
     {"gattClientConnectNative", "(ILjava/lang/String;Z)V", (void *) gattClientConnectNative},
     {"gattClientDisconnectNative", "(ILjava/lang/String;I)V", (void *) gattClientDisconnectNative},
     {"gattClientRefreshNative", "(ILjava/lang/String;)V", (void *) gattClientRefreshNative},
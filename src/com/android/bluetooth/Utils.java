@@ -40,14 +40,67 @@ final public class Utils {
     static final int BD_ADDR_LEN = 6; // bytes
     static final int BD_UUID_LEN = 16; // bytes
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     public static String getAddressStringFromByte(byte[] address) {
         if (address == null || address.length !=6) {
             return null;
         }
 
-        return String.format("%02X:%02X:%02X:%02X:%02X:%02X",
-                address[0], address[1], address[2], address[3], address[4],
-                address[5]);
+        return getAddressStringFromKey(getAddressKey(address));
+    }
+
+    /**
+     * Packs a 6-byte address into the lower 48 bits of a long, first byte
+     * most significant. Address keys are used to index per-device tables
+     * without allocating.
+     */
+    public static long getAddressKey(byte[] address) {
+        long key = 0;
+        for (int i = 0; i < BD_ADDR_LEN; i++) {
+            key = (key << 8) | (address[i] & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the address key of an address string "00:11:22:AA:BB:CC",
+     * or -1 if the string is not a valid address.
+     */
+    public static long getAddressKey(String address) {
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) return -1;
+
+        long key = 0;
+        for (int i = 0; i < BD_ADDR_LEN; i++) {
+            key = (key << 8) | (Character.digit(address.charAt(i * 3), 16) << 4)
+                    | Character.digit(address.charAt(i * 3 + 1), 16);
+        }
+        return key;
+    }
+
+    public static long getAddressKey(BluetoothDevice device) {
+        return getAddressKey(device.getAddress());
+    }
+
+    public static byte[] getBytesFromAddressKey(long key) {
+        byte[] output = new byte[BD_ADDR_LEN];
+        for (int i = BD_ADDR_LEN - 1; i >= 0; i--) {
+            output[i] = (byte) key;
+            key >>= 8;
+        }
+        return output;
+    }
+
+    public static String getAddressStringFromKey(long key) {
+        char[] chars = new char[BD_ADDR_LEN * 3 - 1];
+        for (int i = BD_ADDR_LEN - 1; i >= 0; i--) {
+            int b = (int) key & 0xFF;
+            chars[i * 3] = HEX_DIGITS[b >> 4];
+            chars[i * 3 + 1] = HEX_DIGITS[b & 0x0F];
+            if (i > 0) chars[i * 3 - 1] = ':';
+            key >>= 8;
+        }
+        return new String(chars);
     }
 
     public static byte[] getByteAddress(BluetoothDevice device) {
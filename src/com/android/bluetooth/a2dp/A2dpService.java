@@ -75,17 +75,22 @@ public class A2dpService extends ProfileService {
         return true;
     }
 
+    @Override
+    protected boolean isIdle() {
+        return getDevicesMatchingConnectionStates(ACTIVE_CONNECTION_STATES).isEmpty();
+    }
+
     //API Methods
 
     public static synchronized A2dpService getA2dpService(){
-        if (sAd2dpService != null && sAd2dpService.isAvailable()) {
+        if (sAd2dpService != null && sAd2dpService.isAvailableNoWait()) {
             if (DBG) Log.d(TAG, "getA2DPService(): returning " + sAd2dpService);
             return sAd2dpService;
         }
         if (DBG)  {
             if (sAd2dpService == null) {
                 Log.d(TAG, "getA2dpService(): service is NULL");
-            } else if (!(sAd2dpService.isAvailable())) {
+            } else if (!(sAd2dpService.isAvailableNoWait())) {
                 Log.d(TAG,"getA2dpService(): service is not available");
             }
         }
@@ -93,14 +98,14 @@ public class A2dpService extends ProfileService {
     }
 
     private static synchronized void setA2dpService(A2dpService instance) {
-        if (instance != null && instance.isAvailable()) {
+        if (instance != null && instance.isAvailableNoWait()) {
             if (DBG) Log.d(TAG, "setA2dpService(): set to: " + sAd2dpService);
             sAd2dpService = instance;
         } else {
             if (DBG)  {
                 if (sAd2dpService == null) {
                     Log.d(TAG, "setA2dpService(): service not available");
-                } else if (!sAd2dpService.isAvailable()) {
+                } else if (!sAd2dpService.isAvailableNoWait()) {
                     Log.d(TAG,"setA2dpService(): service is cleaning up");
                 }
             }
@@ -160,9 +165,7 @@ public class A2dpService extends ProfileService {
     public boolean setPriority(BluetoothDevice device, int priority) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothA2dpSinkPriorityKey(device.getAddress()),
-            priority);
+        setProfilePriority(Settings.Global.getBluetoothA2dpSinkPriorityKey(device.getAddress()), priority);
         if (DBG) Log.d(TAG,"Saved priority " + device + " = " + priority);
         return true;
     }
@@ -170,10 +173,7 @@ public class A2dpService extends ProfileService {
     public int getPriority(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothA2dpSinkPriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
-        return priority;
+        return getProfilePriority(Settings.Global.getBluetoothA2dpSinkPriorityKey(device.getAddress()));
     }
 
     /* Absolute volume implementation */
@@ -716,6 +716,8 @@ final class A2dpStateMachine extends StateMachine {
         sendMessage(STACK_EVENT, event);
     }
     private BluetoothDevice getDevice(byte[] address) {
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (adapterService != null) return adapterService.getRemoteDevice(address);
         return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
     }
 
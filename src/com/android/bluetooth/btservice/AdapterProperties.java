@@ -45,6 +45,8 @@ class AdapterProperties {
     private int mDiscoverableTimeout;
     private ParcelUuid[] mUuids;
     private ArrayList<BluetoothDevice> mBondedDevices = new ArrayList<BluetoothDevice>();
+    // Shared copy of mBondedDevices handed out until the list changes
+    private BluetoothDevice[] mBondedDevicesSnapshot;
 
     private int mProfilesConnecting, mProfilesConnected, mProfilesDisconnecting;
     private HashMap<Integer, Pair<Integer, Integer>> mProfileConnectionState;
@@ -83,8 +85,10 @@ class AdapterProperties {
             mProfileConnectionState = null;
         }
         mService = null;
-        if (!mBondedDevices.isEmpty())
+        synchronized (mObject) {
             mBondedDevices.clear();
+            mBondedDevicesSnapshot = null;
+        }
     }
 
     public Object Clone() throws CloneNotSupportedException {
@@ -209,22 +213,16 @@ class AdapterProperties {
     }
 
     /**
-     * @return the mBondedDevices
+     * @return the mBondedDevices. The array is shared between callers
+     * and must not be modified.
      */
     BluetoothDevice[] getBondedDevices() {
-        BluetoothDevice[] bondedDeviceList = new BluetoothDevice[0];
         synchronized (mObject) {
-            if(mBondedDevices.isEmpty())
-                return (new BluetoothDevice[0]);
-
-            try {
-                bondedDeviceList = mBondedDevices.toArray(bondedDeviceList);
-                debugLog("getBondedDevices: length="+bondedDeviceList.length);
-                return bondedDeviceList;
-            } catch(ArrayStoreException ee) {
-                errorLog("Error retrieving bonded device array");
-                return (new BluetoothDevice[0]);
+            if (mBondedDevicesSnapshot == null) {
+                mBondedDevicesSnapshot =
+                    mBondedDevices.toArray(new BluetoothDevice[mBondedDevices.size()]);
             }
+            return mBondedDevicesSnapshot;
         }
     }
     // This function shall be invoked from BondStateMachine whenever the bond
@@ -240,18 +238,23 @@ class AdapterProperties {
                 prop = mRemoteDevices.addDeviceProperties(addrByte);
             prop.setBondState(state);
 
-            if (state == BluetoothDevice.BOND_BONDED) {
-                // add if not already in list
-                if(!mBondedDevices.contains(device)) {
-                    debugLog("Adding bonded device:" +  device);
-                    mBondedDevices.add(device);
+            synchronized (mObject) {
+                if (state == BluetoothDevice.BOND_BONDED) {
+                    // add if not already in list
+                    if(!mBondedDevices.contains(device)) {
+                        debugLog("Adding bonded device:" +  device);
+                        mBondedDevices.add(device);
+                        mBondedDevicesSnapshot = null;
+                    }
+                } else if (state == BluetoothDevice.BOND_NONE) {
+                    // remove device from list
+                    if (mBondedDevices.remove(device)) {
+                        debugLog("Removing bonded device:" +  device);
+                        mBondedDevicesSnapshot = null;
+                    } else {
+                        debugLog("Failed to remove device: " + device);
+                    }
                 }
-            } else if (state == BluetoothDevice.BOND_NONE) {
-                // remove device from list
-                if (mBondedDevices.remove(device))
-                    debugLog("Removing bonded device:" +  device);
-                else
-                    debugLog("Failed to remove device: " + device);
             }
         }
         catch(Exception ee) {
@@ -536,10 +539,13 @@ class AdapterProperties {
             Intent intent;
             if (state == AbstractionLayer.BT_DISCOVERY_STOPPED) {
                 mDiscovering = false;
+                // Deliver the results still merged before announcing the end
+                if (mRemoteDevices != null) mRemoteDevices.onDiscoveryStateChanged(false);
                 intent = new Intent(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
                 mService.sendBroadcast(intent, mService.BLUETOOTH_PERM);
             } else if (state == AbstractionLayer.BT_DISCOVERY_STARTED) {
                 mDiscovering = true;
+                if (mRemoteDevices != null) mRemoteDevices.onDiscoveryStateChanged(true);
                 intent = new Intent(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
                 mService.sendBroadcast(intent, mService.BLUETOOTH_PERM);
             }
@@ -25,6 +25,7 @@ import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothUuid;
 import android.bluetooth.IBluetooth;
 import android.bluetooth.IBluetoothCallback;
 import android.bluetooth.IBluetoothManager;
@@ -136,6 +137,9 @@ public class AdapterService extends Service {
     private boolean mNativeAvailable;
     private boolean mCleaningUp;
     private HashMap<String,Integer> mProfileServicesState = new HashMap<String,Integer>();
+    private ProfileServiceTimeline mProfileTimeline;
+    private AutoConnectScheduler mAutoConnectScheduler;
+    private ProfilePriorityCache mProfilePriorityCache;
     private RemoteCallbackList<IBluetoothCallback> mCallbacks;//Only BluetoothManagerService should be registered
     private int mCurrentRequestId;
     private boolean mQuietmode = false;
@@ -162,10 +166,13 @@ public class AdapterService extends Service {
     }
 
     private void processProfileStateChanged(BluetoothDevice device, int profileId, int newState, int prevState) {
+        // Devices being auto connected get their other profiles from the scheduler
+        boolean scheduled = mAutoConnectScheduler.onConnectionStateChanged(device, profileId,
+                                                                          newState);
         if (((profileId == BluetoothProfile.A2DP) ||(profileId == BluetoothProfile.HEADSET)) &&
             (newState == BluetoothProfile.STATE_CONNECTED)){
             if (DBG) debugLog( "Profile connected. Schedule missing profile connection if any");
-            connectOtherProfile(device, PROFILE_CONN_CONNECTED);
+            if (!scheduled) connectOtherProfile(device, PROFILE_CONN_CONNECTED);
             setProfileAutoConnectionPriority(device, profileId);
         }
         IBluetooth.Stub binder = mBinder;
@@ -196,6 +203,11 @@ public class AdapterService extends Service {
                 mProfileServicesState.put(serviceName,state);
                 doUpdate=true;
             }
+            if (mProfileTimeline != null
+                    && mProfileTimeline.onServiceStateChanged(serviceName, state)) {
+                mHandler.removeMessages(MESSAGE_PROFILE_SERVICE_TIMEOUT);
+                Log.i(TAG, mProfileTimeline.toString());
+            }
         }
         if (DBG) Log.d(TAG,"onProfileServiceStateChange: serviceName=" + serviceName + ", state = " + state +", doUpdate = " + doUpdate);
 
@@ -227,24 +239,57 @@ public class AdapterService extends Service {
             mProfilesStarted=false;
             mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.STOPPED));
         } else if (isTurningOn) {
-            //Process start pending
-            //Check if all services are started if so, update state
-            //if (DBG) Log.d(TAG,"Checking if all profiles are running...");
-            synchronized (mProfileServicesState) {
-                Iterator<Map.Entry<String,Integer>> i = mProfileServicesState.entrySet().iterator();
-                while (i.hasNext()) {
-                    Map.Entry<String,Integer> entry = i.next();
-                    if (BluetoothAdapter.STATE_ON != entry.getValue()) {
-                        Log.d(TAG, "Profile still not running:" + entry.getKey());
-                        return;
-                    }
+            checkProfileServicesStarted();
+        } else if (state == BluetoothAdapter.STATE_ON
+                && mAdapterProperties.getState() == BluetoothAdapter.STATE_ON) {
+            //A lazily started service missed the auto connection at enable
+            if (!isQuietModeEnabled()) {
+                mAutoConnectScheduler.start(HeadsetService.class.getName().equals(serviceName),
+                                            A2dpService.class.getName().equals(serviceName));
+            }
+        }
+    }
+
+    private void checkProfileServicesStarted() {
+        //Process start pending
+        //Check if all services are started if so, update state
+        //Services that missed their start timeout are not waited for, and
+        //neither are lazily started services that were not requested
+        synchronized (mProfileServicesState) {
+            Iterator<Map.Entry<String,Integer>> i = mProfileServicesState.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String,Integer> entry = i.next();
+                if (BluetoothAdapter.STATE_ON != entry.getValue()
+                        && (mProfileTimeline == null
+                            || (mProfileTimeline.isRequested(entry.getKey())
+                                && !mProfileTimeline.isTimedOut(entry.getKey())))) {
+                    Log.d(TAG, "Profile still not running:" + entry.getKey());
+                    return;
                 }
             }
-            if (DBG) Log.d(TAG, "All profile services started.");
-            mProfilesStarted=true;
-            //Send message to state machine
-            mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.STARTED));
         }
+        if (DBG) Log.d(TAG, "All profile services started.");
+        mProfilesStarted=true;
+        //Send message to state machine
+        mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.STARTED));
+    }
+
+    private void processProfileServiceTimeout() {
+        boolean isTurningOn;
+        synchronized (mAdapterStateMachine) {
+            isTurningOn = mAdapterStateMachine.isTurningOn();
+        }
+
+        synchronized (mProfileServicesState) {
+            if (mProfileTimeline == null || mProfileTimeline.isComplete()) return;
+            for (String serviceName : mProfileTimeline.expire()) {
+                Log.w(TAG, "Profile service " + serviceName + " did not start within "
+                        + PROFILE_SERVICE_START_TIMEOUT + "ms");
+            }
+            Log.i(TAG, mProfileTimeline.toString());
+        }
+
+        if (isTurningOn) checkProfileServicesStarted();
     }
 
     @Override
@@ -255,6 +300,8 @@ public class AdapterService extends Service {
         mAdapterProperties = new AdapterProperties(this);
         mAdapterStateMachine =  AdapterState.make(this, mAdapterProperties);
         mJniCallbacks =  new JniCallbacks(mAdapterStateMachine, mAdapterProperties);
+        mAutoConnectScheduler = new AutoConnectScheduler(this);
+        mProfilePriorityCache = new ProfilePriorityCache(getContentResolver());
         initNative();
         mNativeAvailable=true;
         mCallbacks = new RemoteCallbackList<IBluetoothCallback>();
@@ -298,6 +345,15 @@ public class AdapterService extends Service {
         setAdapterService(this);
 
         //Start profile services
+        if (Config.isLazyStartEnabled()) {
+            //Lazily started services are started on demand once the adapter is on
+            ArrayList<Class> eagerProfileServices = new ArrayList<Class>();
+            for (Class service : supportedProfileServices) {
+                if (!Config.isLazyProfile(service)) eagerProfileServices.add(service);
+            }
+            supportedProfileServices = eagerProfileServices.toArray(
+                    new Class[eagerProfileServices.size()]);
+        }
         if (!mProfilesStarted && supportedProfileServices.length >0) {
             //Startup all profile services
             setProfileServiceState(supportedProfileServices,BluetoothAdapter.STATE_ON);
@@ -313,7 +369,22 @@ public class AdapterService extends Service {
 
     boolean stopProfileServices() {
         Class[] supportedProfileServices = Config.getSupportedProfiles();
-        if (mProfilesStarted && supportedProfileServices.length>0) {
+        if (Config.isLazyStartEnabled()) {
+            //Only stop the services that were started
+            ArrayList<Class> runningProfileServices = new ArrayList<Class>();
+            synchronized (mProfileServicesState) {
+                for (Class service : supportedProfileServices) {
+                    Integer state = mProfileServicesState.get(service.getName());
+                    if (state != null && state != BluetoothAdapter.STATE_OFF) {
+                        runningProfileServices.add(service);
+                    }
+                }
+            }
+            supportedProfileServices = runningProfileServices.toArray(
+                    new Class[runningProfileServices.size()]);
+        }
+        if ((mProfilesStarted || Config.isLazyStartEnabled())
+                && supportedProfileServices.length>0) {
             setProfileServiceState(supportedProfileServices,BluetoothAdapter.STATE_OFF);
             return true;
         } else {
@@ -335,6 +406,87 @@ public class AdapterService extends Service {
             }
             mCallbacks.finishBroadcast();
         }
+        if (newState == BluetoothAdapter.STATE_TURNING_OFF) {
+            mAutoConnectScheduler.stop();
+        }
+        if (newState == BluetoothAdapter.STATE_ON && Config.isLazyStartEnabled()) {
+            for (BluetoothDevice device : mAdapterProperties.getBondedDevices()) {
+                activateProfileServicesForDevice(device);
+            }
+        }
+    }
+
+    ProfilePriorityCache getProfilePriorityCache() {
+        return mProfilePriorityCache;
+    }
+
+    /**
+     * Requests the start of a lazily started profile service. Returns false
+     * if the adapter is not on, in which case nothing is started.
+     */
+    @SuppressWarnings("rawtypes")
+    boolean activateProfileService(Class service) {
+        if (mAdapterProperties == null
+                || mAdapterProperties.getState() != BluetoothAdapter.STATE_ON) {
+            return false;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MESSAGE_ACTIVATE_PROFILE_SERVICE, service));
+        return true;
+    }
+
+    /**
+     * Starts the lazily started profile services needed by a bonded device,
+     * according to its UUIDs.
+     */
+    @SuppressWarnings("rawtypes")
+    void activateProfileServicesForDevice(BluetoothDevice device) {
+        if (!Config.isLazyStartEnabled()) return;
+        DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(device);
+        for (Class service : Config.getSupportedProfiles()) {
+            if (Config.isLazyProfile(service) && isProfileServiceNeededBy(service, deviceProp)) {
+                activateProfileService(service);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the profile service must keep running: it is not
+     * started lazily, or a bonded device needs it.
+     */
+    @SuppressWarnings("rawtypes")
+    boolean isProfileServiceNeeded(Class service) {
+        if (!Config.isLazyProfile(service)) return true;
+        for (BluetoothDevice device : mAdapterProperties.getBondedDevices()) {
+            if (isProfileServiceNeededBy(service, mRemoteDevices.getDeviceProperties(device))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private boolean isProfileServiceNeededBy(Class service, DeviceProperties deviceProp) {
+        ParcelUuid[] uuids = Config.getLazyProfileUuids(service);
+        if (uuids == null || deviceProp == null
+                || deviceProp.getBondState() != BluetoothDevice.BOND_BONDED) {
+            return false;
+        }
+        ParcelUuid[] deviceUuids = deviceProp.getUuids();
+        return deviceUuids != null && BluetoothUuid.containsAnyUuid(deviceUuids, uuids);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void processActivateProfileService(Class service) {
+        if (mAdapterProperties.getState() != BluetoothAdapter.STATE_ON) return;
+        Integer state;
+        synchronized (mProfileServicesState) {
+            state = mProfileServicesState.get(service.getName());
+        }
+        //Already starting or running
+        if (state == null || state != BluetoothAdapter.STATE_OFF) return;
+
+        if (DBG) debugLog("Activating profile service " + service.getSimpleName());
+        setProfileServiceState(new Class[] {service}, BluetoothAdapter.STATE_ON);
     }
 
     void cleanup () {
@@ -356,6 +508,14 @@ public class AdapterService extends Service {
             mBondStateMachine.cleanup();
         }
 
+        if (mAutoConnectScheduler != null) {
+            mAutoConnectScheduler.stop();
+        }
+
+        if (mProfilePriorityCache != null) {
+            mProfilePriorityCache.cleanup();
+        }
+
         if (mRemoteDevices != null) {
             mRemoteDevices.cleanup();
         }
@@ -394,6 +554,11 @@ public class AdapterService extends Service {
     }
 
     private static final int MESSAGE_PROFILE_SERVICE_STATE_CHANGED =1;
+    private static final int MESSAGE_PROFILE_SERVICE_TIMEOUT = 2;
+    private static final int MESSAGE_ACTIVATE_PROFILE_SERVICE = 3;
+    // Shorter than the adapter start timeout, so that a slow profile
+    // service does not fail the whole enable sequence
+    private static final int PROFILE_SERVICE_START_TIMEOUT = 4000;
     private static final int MESSAGE_PROFILE_CONNECTION_STATE_CHANGED=20;
     private static final int MESSAGE_CONNECT_OTHER_PROFILES = 30;
     private static final int CONNECT_OTHER_PROFILES_TIMEOUT= 6000;
@@ -409,6 +574,16 @@ public class AdapterService extends Service {
                     processProfileServiceStateChanged((String) msg.obj, msg.arg1);
                 }
                     break;
+                case MESSAGE_PROFILE_SERVICE_TIMEOUT: {
+                    if(DBG) debugLog("MESSAGE_PROFILE_SERVICE_TIMEOUT");
+                    processProfileServiceTimeout();
+                }
+                    break;
+                case MESSAGE_ACTIVATE_PROFILE_SERVICE: {
+                    if(DBG) debugLog("MESSAGE_ACTIVATE_PROFILE_SERVICE");
+                    processActivateProfileService((Class) msg.obj);
+                }
+                    break;
                 case MESSAGE_PROFILE_CONNECTION_STATE_CHANGED: {
                     if (DBG) debugLog( "MESSAGE_PROFILE_CONNECTION_STATE_CHANGED");
                     processProfileStateChanged((BluetoothDevice) msg.obj, msg.arg1,msg.arg2, msg.getData().getInt("prevState",BluetoothAdapter.ERROR));
@@ -437,9 +612,17 @@ public class AdapterService extends Service {
             pendingState = BluetoothAdapter.STATE_TURNING_OFF;
         }
 
+        mHandler.removeMessages(MESSAGE_PROFILE_SERVICE_TIMEOUT);
+        ProfileServiceTimeline timeline = new ProfileServiceTimeline(state);
+        ArrayList<Intent> requests = new ArrayList<Intent>(services.length);
         for (int i=0; i <services.length;i++) {
             String serviceName = services[i].getName();
             Integer serviceState = mProfileServicesState.get(serviceName);
+            if (state == BluetoothAdapter.STATE_OFF && serviceState != null
+                    && serviceState == BluetoothAdapter.STATE_TURNING_ON) {
+                // Service missed its start timeout; stop it anyway
+                serviceState = expectedCurrentState;
+            }
             if(serviceState != null && serviceState != expectedCurrentState) {
                 Log.w(TAG, "Unable to " + (state == BluetoothAdapter.STATE_OFF? "start" : "stop" ) +" service " +
                         serviceName+". Invalid state: " + serviceState);
@@ -451,10 +634,25 @@ public class AdapterService extends Service {
                         serviceName);
             }
 
-            mProfileServicesState.put(serviceName,pendingState);
+            synchronized (mProfileServicesState) {
+                mProfileServicesState.put(serviceName,pendingState);
+                timeline.addService(serviceName);
+            }
             Intent intent = new Intent(this,services[i]);
             intent.putExtra(EXTRA_ACTION,ACTION_SERVICE_STATE_CHANGED);
             intent.putExtra(BluetoothAdapter.EXTRA_STATE,state);
+            requests.add(intent);
+        }
+
+        // Publish the timeline before any service can report back
+        synchronized (mProfileServicesState) {
+            mProfileTimeline = timeline;
+        }
+        if (state == BluetoothAdapter.STATE_ON) {
+            mHandler.sendEmptyMessageDelayed(MESSAGE_PROFILE_SERVICE_TIMEOUT,
+                                             PROFILE_SERVICE_START_TIMEOUT);
+        }
+        for (Intent intent : requests) {
             startService(intent);
         }
     }
@@ -949,6 +1147,21 @@ public class AdapterService extends Service {
         return true;
     }
 
+    /**
+     * Returns the device object for an address reported by the stack.
+     * Known devices are resolved through their address key, so callbacks
+     * share one instance per device instead of creating a new one.
+     */
+    public BluetoothDevice getRemoteDevice(byte[] address) {
+        BluetoothDevice device = null;
+        if (mRemoteDevices != null) device = mRemoteDevices.getDevice(address);
+        if (device == null) {
+            device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+                    Utils.getAddressStringFromByte(address));
+        }
+        return device;
+    }
+
      String getAddress() {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
@@ -1077,43 +1290,13 @@ public class AdapterService extends Service {
          }
          if (isQuietModeEnabled() == false) {
             if (DBG) debugLog( "Initiate auto connection on BT on...");
-             autoConnectHeadset();
-             autoConnectA2dp();
+             mAutoConnectScheduler.start(true, true);
          }
          else {
              if (DBG) debugLog( "BT is in Quiet mode. Not initiating  auto connections");
          }
     }
 
-     private void autoConnectHeadset(){
-        HeadsetService  hsService = HeadsetService.getHeadsetService();
-
-        BluetoothDevice bondedDevices[] = getBondedDevices();
-        if ((bondedDevices == null) ||(hsService == null)) {
-            return;
-        }
-        for (BluetoothDevice device : bondedDevices) {
-            if (hsService.getPriority(device) == BluetoothProfile.PRIORITY_AUTO_CONNECT ){
-                Log.d(TAG,"Auto Connecting Headset Profile with device " + device.toString());
-                hsService.connect(device);
-                }
-        }
-    }
-
-     private void autoConnectA2dp(){
-        A2dpService a2dpSservice = A2dpService.getA2dpService();
-        BluetoothDevice bondedDevices[] = getBondedDevices();
-        if ((bondedDevices == null) ||(a2dpSservice == null)) {
-            return;
-        }
-        for (BluetoothDevice device : bondedDevices) {
-            if (a2dpSservice.getPriority(device) == BluetoothProfile.PRIORITY_AUTO_CONNECT ){
-                Log.d(TAG,"Auto Connecting A2DP Profile with device " + device.toString());
-                a2dpSservice.connect(device);
-                }
-        }
-    }
-
      public void connectOtherProfile(BluetoothDevice device, int firstProfileStatus){
         if ((mHandler.hasMessages(MESSAGE_CONNECT_OTHER_PROFILES) == false) &&
             (isQuietModeEnabled()== false)){
@@ -1128,6 +1311,10 @@ public class AdapterService extends Service {
         if (getState()!= BluetoothAdapter.STATE_ON){
             return;
         }
+        if (mAutoConnectScheduler.isScheduled(device)) {
+            if (DBG) debugLog("processConnectOtherProfiles(): device is being auto connected");
+            return;
+        }
         HeadsetService  hsService = HeadsetService.getHeadsetService();
         A2dpService a2dpService = A2dpService.getA2dpService();
         // if any of the profile service is  null, second profile connection not required
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.a2dp.A2dpService;
+import com.android.bluetooth.hfp.HeadsetService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reconnects the bonded devices whose headset or A2DP priority is
+ * PRIORITY_AUTO_CONNECT. The connections of all devices are planned in one
+ * pass and issued for a limited number of devices at once. Once a profile
+ * of a device is connected, its other enabled profiles are connected right
+ * away instead of after a fixed delay.
+ * @hide
+ */
+final class AutoConnectScheduler {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothAutoConnect";
+
+    // The controller pages one device at a time; a second device lets its
+    // page start as soon as the first one completes, more only queue up
+    private static final int MAX_CONCURRENT_DEVICES = 2;
+    // Time a device may take to connect its profiles before it is given up
+    private static final int CONNECT_TIMEOUT = 15000;
+
+    private static final int FLAG_HEADSET = 1 << 0;
+    private static final int FLAG_A2DP = 1 << 1;
+
+    private class Request {
+        final BluetoothDevice mDevice;
+        final long mPlanTime;
+        // Profiles to connect right away
+        int mAutoConnect;
+        // Profiles to connect once another profile is connected
+        int mOther;
+        // Profiles being connected
+        int mPending;
+        // Profiles connected by the remote device or the user while queued
+        int mConnected;
+
+        Request(BluetoothDevice device, long planTime) {
+            mDevice = device;
+            mPlanTime = planTime;
+        }
+    }
+
+    private final AdapterService mAdapterService;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedList<Request> mQueued = new LinkedList<Request>();
+    private final List<Request> mActive = new ArrayList<Request>(MAX_CONCURRENT_DEVICES);
+
+    private long mPassTime;
+    private int mFailedCount;
+    private final Map<String, Long> mLatencies = new LinkedHashMap<String, Long>();
+
+    AutoConnectScheduler(AdapterService service) {
+        mAdapterService = service;
+    }
+
+    /**
+     * Plans the connection of the given profiles of all bonded devices set
+     * to auto connect.
+     */
+    synchronized void start(boolean headset, boolean a2dp) {
+        HeadsetService hsService = headset ? HeadsetService.getHeadsetService() : null;
+        A2dpService a2dpService = a2dp ? A2dpService.getA2dpService() : null;
+        if (hsService == null && a2dpService == null) return;
+
+        long now = SystemClock.elapsedRealtime();
+        if (mQueued.isEmpty() && mActive.isEmpty()) {
+            mPassTime = now;
+            mFailedCount = 0;
+            mLatencies.clear();
+        }
+
+        for (BluetoothDevice device : mAdapterService.getBondedDevices()) {
+            int autoConnect = 0;
+            int other = 0;
+            if (hsService != null) {
+                int priority = hsService.getPriority(device);
+                if (priority == BluetoothProfile.PRIORITY_AUTO_CONNECT) {
+                    autoConnect |= FLAG_HEADSET;
+                } else if (priority >= BluetoothProfile.PRIORITY_ON) {
+                    other |= FLAG_HEADSET;
+                }
+            }
+            if (a2dpService != null) {
+                int priority = a2dpService.getPriority(device);
+                if (priority == BluetoothProfile.PRIORITY_AUTO_CONNECT) {
+                    autoConnect |= FLAG_A2DP;
+                } else if (priority >= BluetoothProfile.PRIORITY_ON) {
+                    other |= FLAG_A2DP;
+                }
+            }
+            if (autoConnect == 0) continue;
+
+            Request request = find(device);
+            if (request == null) {
+                request = new Request(device, now);
+                mQueued.add(request);
+            }
+            request.mAutoConnect |= autoConnect & ~request.mPending;
+            request.mOther = (request.mOther | other) & ~request.mAutoConnect & ~request.mPending;
+            if (mActive.contains(request)) connect(request, request.mAutoConnect);
+        }
+
+        startNext();
+    }
+
+    /**
+     * Cancels all planned connections.
+     */
+    synchronized void stop() {
+        mHandler.removeCallbacksAndMessages(null);
+        mQueued.clear();
+        mActive.clear();
+    }
+
+    /**
+     * Returns true if the device is being connected by the scheduler.
+     */
+    synchronized boolean isScheduled(BluetoothDevice device) {
+        return find(device) != null;
+    }
+
+    /**
+     * Tracks a profile connection state change. Returns true if the device
+     * is being connected by the scheduler, which then also takes care of
+     * its other profiles.
+     */
+    synchronized boolean onConnectionStateChanged(BluetoothDevice device, int profileId,
+                                                  int newState) {
+        int flag = getFlag(profileId);
+        Request request = find(device);
+        if (flag == 0 || request == null) return false;
+        if (!mActive.contains(request)) {
+            // Connected before its turn, by the remote device or the user
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                request.mAutoConnect &= ~flag;
+                request.mOther &= ~flag;
+                request.mConnected |= flag;
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                request.mConnected &= ~flag;
+            }
+            return false;
+        }
+
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            long latency = SystemClock.elapsedRealtime() - request.mPlanTime;
+            mLatencies.put(device.getAddress() + " " + getProfileName(profileId), latency);
+            Log.i(TAG, "Connected " + getProfileName(profileId) + " to " + device
+                  + " after " + latency + "ms");
+            request.mPending &= ~flag;
+            request.mOther &= ~flag;
+            connectOtherProfiles(request);
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            if ((request.mPending & flag) != 0) {
+                Log.w(TAG, "Unable to connect " + getProfileName(profileId) + " to " + device);
+                ++mFailedCount;
+                request.mPending &= ~flag;
+            }
+        } else if (newState == BluetoothProfile.STATE_CONNECTING) {
+            // Possibly initiated by the remote device
+            request.mOther &= ~flag;
+            request.mPending |= flag;
+        }
+
+        if (request.mPending == 0) finish(request);
+        return true;
+    }
+
+    private void startNext() {
+        while (mActive.size() < MAX_CONCURRENT_DEVICES && !mQueued.isEmpty()) {
+            final Request request = mQueued.poll();
+            mActive.add(request);
+            connect(request, request.mAutoConnect);
+            if (request.mPending == 0 && request.mConnected != 0) {
+                // Nothing left to auto connect, but a profile is already up
+                connectOtherProfiles(request);
+            }
+            if (request.mPending == 0) {
+                finish(request);
+                continue;
+            }
+            mHandler.postAtTime(new Runnable() {
+                public void run() {
+                    onTimeout(request);
+                }
+            }, request, SystemClock.uptimeMillis() + CONNECT_TIMEOUT);
+        }
+    }
+
+    private synchronized void onTimeout(Request request) {
+        if (!mActive.contains(request)) return;
+        Log.w(TAG, "Timed out connecting " + request.mDevice);
+        mFailedCount += Integer.bitCount(request.mPending);
+        finish(request);
+    }
+
+    private void finish(Request request) {
+        mActive.remove(request);
+        mHandler.removeCallbacksAndMessages(request);
+        startNext();
+        if (mQueued.isEmpty() && mActive.isEmpty()) Log.i(TAG, toString());
+    }
+
+    private void connectOtherProfiles(Request request) {
+        // Only connect profiles that are not connected to another device
+        int other = request.mOther;
+        if ((other & FLAG_HEADSET) != 0) {
+            HeadsetService hsService = HeadsetService.getHeadsetService();
+            if (hsService == null || !hsService.getConnectedDevices().isEmpty()) {
+                other &= ~FLAG_HEADSET;
+            }
+        }
+        if ((other & FLAG_A2DP) != 0) {
+            A2dpService a2dpService = A2dpService.getA2dpService();
+            if (a2dpService == null || !a2dpService.getConnectedDevices().isEmpty()) {
+                other &= ~FLAG_A2DP;
+            }
+        }
+        request.mOther = 0;
+        connect(request, other);
+    }
+
+    private void connect(Request request, int profiles) {
+        if ((profiles & FLAG_HEADSET) != 0 && (request.mPending & FLAG_HEADSET) == 0) {
+            HeadsetService hsService = HeadsetService.getHeadsetService();
+            if (hsService != null && hsService.connect(request.mDevice)) {
+                if (DBG) Log.d(TAG, "Connecting Headset Profile with device " + request.mDevice);
+                request.mPending |= FLAG_HEADSET;
+            }
+        }
+        if ((profiles & FLAG_A2DP) != 0 && (request.mPending & FLAG_A2DP) == 0) {
+            A2dpService a2dpService = A2dpService.getA2dpService();
+            if (a2dpService != null && a2dpService.connect(request.mDevice)) {
+                if (DBG) Log.d(TAG, "Connecting A2DP Profile with device " + request.mDevice);
+                request.mPending |= FLAG_A2DP;
+            }
+        }
+        request.mAutoConnect &= ~profiles;
+    }
+
+    private Request find(BluetoothDevice device) {
+        for (Request request : mActive) {
+            if (request.mDevice.equals(device)) return request;
+        }
+        for (Request request : mQueued) {
+            if (request.mDevice.equals(device)) return request;
+        }
+        return null;
+    }
+
+    private static int getFlag(int profileId) {
+        if (profileId == BluetoothProfile.HEADSET) return FLAG_HEADSET;
+        if (profileId == BluetoothProfile.A2DP) return FLAG_A2DP;
+        return 0;
+    }
+
+    private static String getProfileName(int profileId) {
+        return (profileId == BluetoothProfile.HEADSET) ? "HEADSET" : "A2DP";
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("Auto connection after ").append(SystemClock.elapsedRealtime() - mPassTime)
+            .append("ms:");
+        for (Map.Entry<String, Long> entry : mLatencies.entrySet()) {
+            b.append(' ').append(entry.getKey()).append('=').append(entry.getValue()).append("ms");
+        }
+        b.append(" failed=").append(mFailedCount);
+        return b.toString();
+    }
+}
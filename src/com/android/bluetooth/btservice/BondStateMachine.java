@@ -271,6 +271,9 @@ final class BondStateMachine extends StateMachine {
                 AdapterService.BLUETOOTH_PERM);
         infoLog("Bond State Change Intent:" + device + " OldState: " + oldState
                 + " NewState: " + newState);
+        if (newState == BluetoothDevice.BOND_BONDED) {
+            mAdapterService.activateProfileServicesForDevice(device);
+        }
     }
 
     void bondStateChangeCallback(int status, byte[] address, int newState) {
@@ -18,8 +18,10 @@ package com.android.bluetooth.btservice;
 
 import java.util.ArrayList;
 
+import android.bluetooth.BluetoothUuid;
 import android.content.Context;
 import android.content.res.Resources;
+import android.os.ParcelUuid;
 import android.util.Log;
 
 import com.android.bluetooth.R;
@@ -61,7 +63,32 @@ public class Config {
         R.bool.profile_supported_map
     };
 
+    /**
+     * Profile services started on demand when lazy start is enabled,
+     * with the remote UUIDs for which a bonded device needs them. Services
+     * without UUIDs are only started by their first API call. MAP is not
+     * listed, since remote clients must find its server running.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final Class[] LAZY_PROFILE_SERVICES = {
+        HeadsetService.class,
+        A2dpService.class,
+        HidService.class,
+        HealthService.class,
+        PanService.class,
+        GattService.class
+    };
+    private static final ParcelUuid[][] LAZY_PROFILE_UUIDS = {
+        { BluetoothUuid.Handsfree, BluetoothUuid.HSP },
+        { BluetoothUuid.AudioSink, BluetoothUuid.AdvAudioDist },
+        { BluetoothUuid.Hid },
+        null,
+        { BluetoothUuid.NAP, BluetoothUuid.PANU },
+        null
+    };
+
     private static Class[] SUPPORTED_PROFILES = new Class[0];
+    private static boolean LAZY_START = false;
 
     static void init(Context ctx) {
         if (ctx == null) {
@@ -82,9 +109,39 @@ public class Config {
         int totalProfiles = profiles.size();
         SUPPORTED_PROFILES = new Class[totalProfiles];
         profiles.toArray(SUPPORTED_PROFILES);
+        LAZY_START = resources.getBoolean(R.bool.profile_services_lazy_start);
+        if (LAZY_START) Log.d(TAG, "Profile services are started on demand");
     }
 
     static Class[]  getSupportedProfiles() {
         return SUPPORTED_PROFILES;
     }
+
+    static boolean isLazyStartEnabled() {
+        return LAZY_START;
+    }
+
+    /**
+     * Returns true if the profile service is not started with the adapter,
+     * but on demand.
+     */
+    static boolean isLazyProfile(Class service) {
+        return LAZY_START && getLazyProfileIndex(service) >= 0;
+    }
+
+    /**
+     * Returns the remote UUIDs for which a bonded device needs the lazily
+     * started profile service, or null if there are none.
+     */
+    static ParcelUuid[] getLazyProfileUuids(Class service) {
+        int i = getLazyProfileIndex(service);
+        return (i >= 0) ? LAZY_PROFILE_UUIDS[i] : null;
+    }
+
+    private static int getLazyProfileIndex(Class service) {
+        for (int i = 0; i < LAZY_PROFILE_SERVICES.length; i++) {
+            if (LAZY_PROFILE_SERVICES[i] == service) return i;
+        }
+        return -1;
+    }
 }
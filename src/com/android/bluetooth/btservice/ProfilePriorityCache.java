@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothProfile;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory copy of the profile priorities stored in Settings.Global,
+ * keyed by their settings key. Reads are served from memory after the
+ * first one, until the settings provider reports a change of the key;
+ * writes update memory right away and are stored to the settings
+ * provider in batches on a background thread.
+ * @hide
+ */
+final class ProfilePriorityCache {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothProfilePriorityCache";
+
+    private static final int MESSAGE_FLUSH = 1;
+    // Delay collecting the priority changes of one event into one batch
+    private static final int FLUSH_DELAY = 500;
+
+    private final ContentResolver mResolver;
+    private final HashMap<String, Integer> mPriorities = new HashMap<String, Integer>();
+    // Keeps batches in order when cleanup() flushes while the thread does
+    private final Object mFlushLock = new Object();
+    private LinkedHashMap<String, Integer> mPendingWrites = new LinkedHashMap<String, Integer>();
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final ContentObserver mObserver;
+    private boolean mClosed = false;
+    // Reads started before a settings change must not be kept
+    private int mGeneration = 0;
+
+    ProfilePriorityCache(ContentResolver resolver) {
+        mResolver = resolver;
+        mThread = new HandlerThread("BluetoothPriorityWriter");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MESSAGE_FLUSH) flush();
+            }
+        };
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate((uri != null) ? uri.getLastPathSegment() : null);
+            }
+        };
+        mResolver.registerContentObserver(Settings.Global.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * Returns the priority stored under the given settings key, or
+     * PRIORITY_UNDEFINED if there is none.
+     */
+    int get(String key) {
+        int generation;
+        synchronized (mPriorities) {
+            Integer priority = mPriorities.get(key);
+            if (priority != null) return priority;
+            generation = mGeneration;
+        }
+
+        int priority = Settings.Global.getInt(mResolver, key,
+                                              BluetoothProfile.PRIORITY_UNDEFINED);
+        synchronized (mPriorities) {
+            // A concurrent set() wins over the stored value
+            Integer current = mPriorities.get(key);
+            if (current != null) return current;
+            if (generation == mGeneration) mPriorities.put(key, priority);
+        }
+        return priority;
+    }
+
+    void set(String key, int priority) {
+        synchronized (mPriorities) {
+            Integer current = mPriorities.put(key, priority);
+            if (current != null && current == priority && !mPendingWrites.containsKey(key)) {
+                return;
+            }
+            if (!mClosed) {
+                if (mPendingWrites.isEmpty()) {
+                    mHandler.sendEmptyMessageDelayed(MESSAGE_FLUSH, FLUSH_DELAY);
+                }
+                mPendingWrites.put(key, priority);
+                return;
+            }
+        }
+        Settings.Global.putInt(mResolver, key, priority);
+    }
+
+    /**
+     * Stores the pending writes and stops the background thread. Later
+     * writes are stored synchronously.
+     */
+    void cleanup() {
+        mResolver.unregisterContentObserver(mObserver);
+        synchronized (mPriorities) {
+            mClosed = true;
+        }
+        mHandler.removeMessages(MESSAGE_FLUSH);
+        flush();
+        mThread.quit();
+    }
+
+    /**
+     * Drops the copy of a key changed in the settings provider, or of all
+     * keys if the key is not known. Keys with a write pending keep their
+     * value, which is about to be stored.
+     */
+    private void invalidate(String key) {
+        synchronized (mPriorities) {
+            ++mGeneration;
+            if (key == null) {
+                mPriorities.keySet().retainAll(mPendingWrites.keySet());
+            } else if (!mPendingWrites.containsKey(key)) {
+                mPriorities.remove(key);
+            }
+        }
+    }
+
+    private void flush() {
+        synchronized (mFlushLock) {
+            Map<String, Integer> writes;
+            synchronized (mPriorities) {
+                if (mPendingWrites.isEmpty()) return;
+                writes = mPendingWrites;
+                mPendingWrites = new LinkedHashMap<String, Integer>();
+            }
+
+            if (DBG) Log.d(TAG, "flush() - " + writes.size() + " priorities");
+            for (Map.Entry<String, Integer> entry : writes.entrySet()) {
+                Settings.Global.putInt(mResolver, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
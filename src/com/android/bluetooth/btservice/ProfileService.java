@@ -27,7 +27,11 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
 import android.util.Log;
 
 public abstract class ProfileService extends Service {
@@ -39,6 +43,18 @@ public abstract class ProfileService extends Service {
             android.Manifest.permission.BLUETOOTH_ADMIN;
     public static final String BLUETOOTH_PERM = android.Manifest.permission.BLUETOOTH;
 
+    /** Connection states in which a lazily started service is not idle */
+    protected static final int[] ACTIVE_CONNECTION_STATES = {
+        BluetoothProfile.STATE_CONNECTING,
+        BluetoothProfile.STATE_CONNECTED,
+        BluetoothProfile.STATE_DISCONNECTING
+    };
+
+    //Time an API call waits for a lazily started service to come up
+    private static final int LAZY_START_TIMEOUT = 2000;
+    //Time without API calls after which an idle lazily started service is stopped
+    private static final int IDLE_STOP_TIMEOUT = 120000;
+
     public static interface IProfileServiceBinder extends IBinder {
         public boolean cleanup();
     }
@@ -50,13 +66,46 @@ public abstract class ProfileService extends Service {
     protected IProfileServiceBinder mBinder;
     protected boolean mStartError=false;
     private boolean mCleaningUp = false;
+    private final Object mStartLock = new Object();
+    private volatile boolean mStarted = false;
+    private volatile long mLastActivityTime;
+    private final Handler mIdleHandler = new Handler(Looper.getMainLooper());
 
     protected String getName() {
         return getClass().getSimpleName();
     }
 
     protected boolean isAvailable() {
-        return !mStartError && !mCleaningUp;
+        if (mStartError || mCleaningUp) return false;
+        if (Config.isLazyProfile(getClass())) {
+            mLastActivityTime = SystemClock.elapsedRealtime();
+            if (!mStarted) return awaitLazyStart();
+        }
+        return true;
+    }
+
+    /**
+     * Like isAvailable(), but never waits for a lazily started service to
+     * come up; its start is only requested. Used by the static service
+     * getters, which must not block while holding their class lock.
+     */
+    protected boolean isAvailableNoWait() {
+        if (mStartError || mCleaningUp) return false;
+        if (Config.isLazyProfile(getClass()) && !mStarted) {
+            AdapterService svc = AdapterService.getAdapterService();
+            if (svc != null) svc.activateProfileService(getClass());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a lazily started service has no activity that
+     * requires it to keep running. Services that return false are never
+     * stopped for being idle.
+     */
+    protected boolean isIdle() {
+        return false;
     }
 
     protected abstract IProfileServiceBinder initBinder();
@@ -150,6 +199,7 @@ public abstract class ProfileService extends Service {
     @Override
     public void onDestroy() {
         if (DBG) log("Destroying service.");
+        mIdleHandler.removeCallbacks(mIdleCheck);
         if (mCleaningUp) {
             if (DBG) log("Cleanup already started... Skipping cleanup()...");
         } else {
@@ -171,18 +221,28 @@ public abstract class ProfileService extends Service {
             Log.e(mName, "Error starting profile. BluetoothAdapter is null");
         } else {
             if (DBG) log("start()");
+            //Mark the service started first: start() publishes the service
+            //instance, which checks that it is available
+            setStarted(true);
             mStartError = !start();
             if (!mStartError) {
+                if (Config.isLazyProfile(getClass())) {
+                    mLastActivityTime = SystemClock.elapsedRealtime();
+                    mIdleHandler.postDelayed(mIdleCheck, IDLE_STOP_TIMEOUT);
+                }
                 notifyProfileServiceStateChanged(BluetoothAdapter.STATE_ON);
             } else {
+                setStarted(false);
                 Log.e(mName, "Error starting profile. BluetoothAdapter is null");
             }
         }
     }
 
     private void doStop(Intent intent) {
+        mIdleHandler.removeCallbacks(mIdleCheck);
         if (stop()) {
             if (DBG) log("stop()");
+            setStarted(false);
             notifyProfileServiceStateChanged(BluetoothAdapter.STATE_OFF);
             stopSelf();
         } else {
@@ -190,6 +250,60 @@ public abstract class ProfileService extends Service {
         }
     }
 
+    private final Runnable mIdleCheck = new Runnable() {
+        public void run() {
+            if (!mStarted) return;
+            long idleTime = SystemClock.elapsedRealtime() - mLastActivityTime;
+            AdapterService svc = AdapterService.getAdapterService();
+            if (idleTime < IDLE_STOP_TIMEOUT || !isIdle()
+                    || (svc != null && svc.isProfileServiceNeeded(ProfileService.this.getClass()))) {
+                mIdleHandler.postDelayed(mIdleCheck, Math.max(IDLE_STOP_TIMEOUT - idleTime,
+                                                              IDLE_STOP_TIMEOUT / 4));
+                return;
+            }
+            //Stopped like on adapter off; the next API call starts it again
+            Log.d(mName, "Stopping idle profile service");
+            doStop(null);
+        }
+    };
+
+    private void setStarted(boolean started) {
+        synchronized (mStartLock) {
+            mStarted = started;
+            mStartLock.notifyAll();
+        }
+    }
+
+    /**
+     * Requests the start of a lazily started service and waits for it.
+     * On the main thread, which runs the start itself, the request is only
+     * posted and false is returned.
+     */
+    private boolean awaitLazyStart() {
+        AdapterService svc = AdapterService.getAdapterService();
+        if (svc == null || !svc.activateProfileService(getClass())) return false;
+        if (Looper.myLooper() == Looper.getMainLooper()) return false;
+
+        long deadline = SystemClock.elapsedRealtime() + LAZY_START_TIMEOUT;
+        synchronized (mStartLock) {
+            while (!mStarted && !mStartError) {
+                long timeout = deadline - SystemClock.elapsedRealtime();
+                if (timeout <= 0) {
+                    Log.w(mName, "Profile service did not start within "
+                          + LAZY_START_TIMEOUT + "ms");
+                    break;
+                }
+                try {
+                    mStartLock.wait(timeout);
+                } catch (InterruptedException e) {
+                    Log.w(mName, "Interrupted while waiting for profile start");
+                    break;
+                }
+            }
+            return mStarted;
+        }
+    }
+
     protected void notifyProfileServiceStateChanged(int state) {
         //Notify adapter service
         AdapterService sAdapter = AdapterService.getAdapterService();
@@ -206,7 +320,31 @@ public abstract class ProfileService extends Service {
         }
     }
 
+    /**
+     * Returns the priority stored under the given settings key, from the
+     * adapter's in-memory copy when available.
+     */
+    protected int getProfilePriority(String key) {
+        AdapterService svc = AdapterService.getAdapterService();
+        ProfilePriorityCache cache = (svc != null) ? svc.getProfilePriorityCache() : null;
+        if (cache != null) return cache.get(key);
+        return Settings.Global.getInt(getContentResolver(), key,
+                                      BluetoothProfile.PRIORITY_UNDEFINED);
+    }
+
+    protected void setProfilePriority(String key, int priority) {
+        AdapterService svc = AdapterService.getAdapterService();
+        ProfilePriorityCache cache = (svc != null) ? svc.getProfilePriorityCache() : null;
+        if (cache != null) {
+            cache.set(key, priority);
+        } else {
+            Settings.Global.putInt(getContentResolver(), key, priority);
+        }
+    }
+
     protected BluetoothDevice getDevice(byte[] address) {
+        AdapterService svc = AdapterService.getAdapterService();
+        if (svc != null) return svc.getRemoteDevice(address);
         return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
     }
 
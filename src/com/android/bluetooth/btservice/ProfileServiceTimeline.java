@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks one round of profile service start or stop requests: how long
+ * each service took to report the target state, and which services
+ * missed their timeout.
+ * @hide
+ */
+final class ProfileServiceTimeline {
+    private final int mTargetState;
+    private final long mBeginTime;
+    private final HashSet<String> mRequested = new HashSet<String>();
+    private final HashSet<String> mPending = new HashSet<String>();
+    private final HashSet<String> mTimedOut = new HashSet<String>();
+    private final Map<String, Long> mDurations = new LinkedHashMap<String, Long>();
+
+    ProfileServiceTimeline(int targetState) {
+        mTargetState = targetState;
+        mBeginTime = SystemClock.elapsedRealtime();
+    }
+
+    int getTargetState() {
+        return mTargetState;
+    }
+
+    void addService(String serviceName) {
+        mRequested.add(serviceName);
+        mPending.add(serviceName);
+    }
+
+    /**
+     * Returns true if the service is part of this round.
+     */
+    boolean isRequested(String serviceName) {
+        return mRequested.contains(serviceName);
+    }
+
+    /**
+     * Records the report of a service. Returns true if it was the last
+     * service awaited.
+     */
+    boolean onServiceStateChanged(String serviceName, int state) {
+        if (state != mTargetState) return false;
+        if (!mPending.remove(serviceName) && !mTimedOut.remove(serviceName)) return false;
+
+        mDurations.put(serviceName, SystemClock.elapsedRealtime() - mBeginTime);
+        return mPending.isEmpty();
+    }
+
+    /**
+     * Returns true if the service missed its timeout and is no longer
+     * awaited.
+     */
+    boolean isTimedOut(String serviceName) {
+        return mTimedOut.contains(serviceName);
+    }
+
+    /**
+     * Stops waiting for the services that have not reported yet and
+     * returns their names.
+     */
+    List<String> expire() {
+        List<String> expired = new ArrayList<String>(mPending);
+        mTimedOut.addAll(mPending);
+        mPending.clear();
+        return expired;
+    }
+
+    boolean isComplete() {
+        return mPending.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("Profile services reached state ").append(mTargetState)
+            .append(" after ").append(SystemClock.elapsedRealtime() - mBeginTime).append("ms:");
+        for (Map.Entry<String, Long> entry : mDurations.entrySet()) {
+            String name = entry.getKey();
+            b.append(' ').append(name.substring(name.lastIndexOf('.') + 1))
+                .append('=').append(entry.getValue()).append("ms");
+        }
+        for (String name : mPending) {
+            b.append(' ').append(name.substring(name.lastIndexOf('.') + 1)).append("=pending");
+        }
+        for (String name : mTimedOut) {
+            b.append(' ').append(name.substring(name.lastIndexOf('.') + 1)).append("=timeout");
+        }
+        return b.toString();
+    }
+}
@@ -24,14 +24,15 @@ import android.content.Intent;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 final class RemoteDevices {
@@ -43,18 +44,48 @@ final class RemoteDevices {
     private static AdapterService mAdapterService;
     private static ArrayList<BluetoothDevice> mSdpTracker;
 
-    private Object mObject = new Object();
-
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
+    private static final int MESSAGE_DEVICE_EVENTS = 2;
+
+    /**
+     * Window over which found and property change events of a device are
+     * merged into a single broadcast.
+     */
+    private static final int DEVICE_EVENT_WINDOW_MS = 250;
+
+    private static final int EVENT_FOUND = 1;
+    private static final int EVENT_NAME_CHANGED = 2;
+    private static final int EVENT_CLASS_CHANGED = 4;
+
+    /**
+     * Maximum number of devices kept from discovery. Beyond that, the
+     * oldest ones that are neither bonded nor connected are forgotten.
+     */
+    private static final int MAX_DISCOVERED_DEVICES = 256;
+
+    /** Known devices by address key */
+    private ConcurrentHashMap<Long, DeviceProperties> mDevices;
 
-    private HashMap<BluetoothDevice, DeviceProperties> mDevices;
+    /** Address keys of devices added from stack callbacks, oldest first */
+    private LinkedList<Long> mDiscoveredDevices;
+
+    /** Devices with events waiting for the window to expire */
+    private final ArrayList<DeviceProperties> mPendingDevices = new ArrayList<DeviceProperties>();
+
+    // Device event statistics of the current discovery, guarded by mPendingDevices
+    private int mQueuedEventCount;
+    private int mBroadcastCount;
+    private int mSentEventCount;
+    private long mTotalEventLatency;
+    private long mMaxEventLatency;
 
     RemoteDevices(AdapterService service) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mAdapterService = service;
         mSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<BluetoothDevice, DeviceProperties>();
+        mDevices = new ConcurrentHashMap<Long, DeviceProperties>();
+        mDiscoveredDevices = new LinkedList<Long>();
     }
 
 
@@ -64,6 +95,22 @@ final class RemoteDevices {
 
         if (mDevices != null)
             mDevices.clear();
+
+        if (mDiscoveredDevices != null) {
+            synchronized (mDiscoveredDevices) {
+                mDiscoveredDevices.clear();
+            }
+        }
+
+        synchronized (mPendingDevices) {
+            for (DeviceProperties prop : mPendingDevices) {
+                prop.mPendingEvents = 0;
+                prop.mPendingEventCount = 0;
+                prop.mPendingEventTimes = 0;
+            }
+            mPendingDevices.clear();
+        }
+        mHandler.removeMessages(MESSAGE_DEVICE_EVENTS);
     }
 
     public Object Clone() throws CloneNotSupportedException {
@@ -71,42 +118,77 @@ final class RemoteDevices {
     }
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
-        synchronized (mDevices) {
-            return mDevices.get(device);
-        }
+        if (device == null) return null;
+        return mDevices.get(Utils.getAddressKey(device));
     }
 
     BluetoothDevice getDevice(byte[] address) {
-        for (BluetoothDevice dev : mDevices.keySet()) {
-            if (dev.getAddress().equals(Utils.getAddressStringFromByte(address))) {
-                return dev;
-            }
-        }
-        return null;
+        return getDevice(Utils.getAddressKey(address));
+    }
+
+    BluetoothDevice getDevice(long addressKey) {
+        DeviceProperties prop = mDevices.get(addressKey);
+        return (prop != null) ? prop.mDevice : null;
     }
 
     DeviceProperties addDeviceProperties(byte[] address) {
-        synchronized (mDevices) {
-            DeviceProperties prop = new DeviceProperties();
-            BluetoothDevice device =
-                    mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
-            prop.mAddress = address;
-            mDevices.put(device, prop);
-            return prop;
+        long key = Utils.getAddressKey(address);
+        BluetoothDevice device =
+                mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        DeviceProperties prop = new DeviceProperties(device, address);
+        DeviceProperties existing = mDevices.putIfAbsent(key, prop);
+        return (existing != null) ? existing : prop;
+    }
+
+    /**
+     * Adds a device reported by a stack callback, and forgets the oldest
+     * such devices beyond MAX_DISCOVERED_DEVICES unless they are bonded or
+     * connected.
+     */
+    private DeviceProperties addDiscoveredDevice(byte[] address) {
+        DeviceProperties prop = addDeviceProperties(address);
+
+        synchronized (mDiscoveredDevices) {
+            mDiscoveredDevices.add(Utils.getAddressKey(address));
+            while (mDiscoveredDevices.size() > MAX_DISCOVERED_DEVICES) {
+                Long key = mDiscoveredDevices.removeFirst();
+                DeviceProperties oldest = mDevices.get(key);
+                if (oldest != null && oldest.getBondState() == BluetoothDevice.BOND_NONE
+                        && !oldest.mAclConnected && !mSdpTracker.contains(oldest.mDevice)) {
+                    debugLog("Forgetting discovered device " + oldest.mDevice);
+                    mDevices.remove(key);
+                }
+            }
         }
+        return prop;
     }
 
+    /**
+     * Properties of a remote device. Fields are read without locking;
+     * updates that touch several fields synchronize on the instance.
+     */
     class DeviceProperties {
-        private String mName;
-        private byte[] mAddress;
-        private int mBluetoothClass;
-        private short mRssi;
-        private ParcelUuid[] mUuids;
-        private int mDeviceType;
-        private String mAlias;
-        private int mBondState;
-
-        DeviceProperties() {
+        private final BluetoothDevice mDevice;
+        private volatile String mName;
+        private volatile byte[] mAddress;
+        private volatile int mBluetoothClass;
+        private volatile short mRssi;
+        private volatile ParcelUuid[] mUuids;
+        private volatile int mDeviceType;
+        private volatile String mAlias;
+        private volatile int mBondState;
+        private volatile boolean mAclConnected;
+
+        // Guarded by mPendingDevices
+        private int mPendingEvents;
+        private long mPendingSince;
+        // Number of queued events and the sum of their queueing times
+        private int mPendingEventCount;
+        private long mPendingEventTimes;
+
+        DeviceProperties(BluetoothDevice device, byte[] address) {
+            mDevice = device;
+            mAddress = address;
             mBondState = BluetoothDevice.BOND_NONE;
         }
 
@@ -114,80 +196,64 @@ final class RemoteDevices {
          * @return the mName
          */
         String getName() {
-            synchronized (mObject) {
-                return mName;
-            }
+            return mName;
         }
 
         /**
          * @return the mClass
          */
         int getBluetoothClass() {
-            synchronized (mObject) {
-                return mBluetoothClass;
-            }
+            return mBluetoothClass;
         }
 
         /**
          * @return the mUuids
          */
         ParcelUuid[] getUuids() {
-            synchronized (mObject) {
-                return mUuids;
-            }
+            return mUuids;
         }
 
         /**
          * @return the mAddress
          */
         byte[] getAddress() {
-            synchronized (mObject) {
-                return mAddress;
-            }
+            return mAddress;
         }
 
         /**
          * @return mRssi
          */
         short getRssi() {
-            synchronized (mObject) {
-                return mRssi;
-            }
+            return mRssi;
         }
 
         /**
          * @return mDeviceType
          */
         int getDeviceType() {
-            synchronized (mObject) {
-                return mDeviceType;
-            }
+            return mDeviceType;
         }
 
         /**
          * @return the mAlias
          */
         String getAlias() {
-            synchronized (mObject) {
-                return mAlias;
-            }
+            return mAlias;
         }
 
         /**
          * @param mAlias the mAlias to set
          */
         void setAlias(String mAlias) {
-            synchronized (mObject) {
-                mAdapterService.setDevicePropertyNative(mAddress,
-                    AbstractionLayer.BT_PROPERTY_REMOTE_FRIENDLY_NAME, mAlias.getBytes());
-            }
+            mAdapterService.setDevicePropertyNative(mAddress,
+                AbstractionLayer.BT_PROPERTY_REMOTE_FRIENDLY_NAME, mAlias.getBytes());
         }
 
         /**
          * @param mBondState the mBondState to set
          */
         void setBondState(int mBondState) {
-            synchronized (mObject) {
+            synchronized (this) {
                 this.mBondState = mBondState;
                 if (mBondState == BluetoothDevice.BOND_NONE)
                 {
@@ -204,9 +270,7 @@ final class RemoteDevices {
          * @return the mBondState
          */
         int getBondState() {
-            synchronized (mObject) {
-                return mBondState;
-            }
+            return mBondState;
         }
     }
 
@@ -235,14 +299,11 @@ final class RemoteDevices {
         Intent intent;
         byte[] val;
         int type;
-        BluetoothDevice bdDevice = getDevice(address);
-        DeviceProperties device;
-        if (bdDevice == null) {
-            device = addDeviceProperties(address);
-            bdDevice = getDevice(address);
-        } else {
-            device = getDeviceProperties(bdDevice);
+        DeviceProperties device = mDevices.get(Utils.getAddressKey(address));
+        if (device == null) {
+            device = addDiscoveredDevice(address);
         }
+        BluetoothDevice bdDevice = device.mDevice;
 
         for (int j = 0; j < types.length; j++) {
             type = types[j];
@@ -250,24 +311,15 @@ final class RemoteDevices {
             if(val.length <= 0)
                 errorLog("devicePropertyChangedCallback: bdDevice: " + bdDevice + ", value is empty for type: " + type);
             else {
-                synchronized(mObject) {
+                synchronized(device) {
                     switch (type) {
                         case AbstractionLayer.BT_PROPERTY_BDNAME:
                             device.mName = new String(val);
-                            intent = new Intent(BluetoothDevice.ACTION_NAME_CHANGED);
-                            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bdDevice);
-                            intent.putExtra(BluetoothDevice.EXTRA_NAME, device.mName);
-                            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
-                            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
+                            queueDeviceEvent(device, EVENT_NAME_CHANGED);
                             debugLog("Remote Device name is: " + device.mName);
                             break;
                         case AbstractionLayer.BT_PROPERTY_REMOTE_FRIENDLY_NAME:
-                            if (device.mAlias != null) {
-                                System.arraycopy(val, 0, device.mAlias, 0, val.length);
-                            }
-                            else {
-                                device.mAlias = new String(val);
-                            }
+                            device.mAlias = new String(val);
                             break;
                         case AbstractionLayer.BT_PROPERTY_BDADDR:
                             device.mAddress = val;
@@ -275,18 +327,14 @@ final class RemoteDevices {
                             break;
                         case AbstractionLayer.BT_PROPERTY_CLASS_OF_DEVICE:
                             device.mBluetoothClass =  Utils.byteArrayToInt(val);
-                            intent = new Intent(BluetoothDevice.ACTION_CLASS_CHANGED);
-                            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bdDevice);
-                            intent.putExtra(BluetoothDevice.EXTRA_CLASS,
-                                    new BluetoothClass(device.mBluetoothClass));
-                            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
-                            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
+                            queueDeviceEvent(device, EVENT_CLASS_CHANGED);
                             debugLog("Remote class is:" + device.mBluetoothClass);
                             break;
                         case AbstractionLayer.BT_PROPERTY_UUIDS:
                             int numUuids = val.length/AbstractionLayer.BT_UUID_SIZE;
                             device.mUuids = Utils.byteArrayToUuid(val);
                             sendUuidIntent(bdDevice);
+                            mAdapterService.activateProfileServicesForDevice(bdDevice);
                             break;
                         case AbstractionLayer.BT_PROPERTY_TYPE_OF_DEVICE:
                             // The device type from hal layer, defined in bluetooth.h,
@@ -314,14 +362,128 @@ final class RemoteDevices {
             return;
         }
 
-        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
-        intent.putExtra(BluetoothDevice.EXTRA_CLASS,
-                new BluetoothClass(Integer.valueOf(deviceProp.mBluetoothClass)));
-        intent.putExtra(BluetoothDevice.EXTRA_RSSI, deviceProp.mRssi);
-        intent.putExtra(BluetoothDevice.EXTRA_NAME, deviceProp.mName);
+        queueDeviceEvent(deviceProp, EVENT_FOUND);
+    }
 
-        mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
+    /**
+     * Records an event of a device. Repeats of the same event of a device
+     * within DEVICE_EVENT_WINDOW_MS are sent as a single broadcast.
+     */
+    private void queueDeviceEvent(DeviceProperties prop, int event) {
+        synchronized (mPendingDevices) {
+            long now = SystemClock.elapsedRealtime();
+            ++mQueuedEventCount;
+            ++prop.mPendingEventCount;
+            prop.mPendingEventTimes += now;
+            if (prop.mPendingEvents == 0) {
+                prop.mPendingSince = now;
+                mPendingDevices.add(prop);
+                if (mPendingDevices.size() == 1) {
+                    mHandler.sendEmptyMessageDelayed(MESSAGE_DEVICE_EVENTS,
+                                                     DEVICE_EVENT_WINDOW_MS);
+                }
+            }
+            prop.mPendingEvents |= event;
+        }
+    }
+
+    /**
+     * Sends the broadcasts of all pending device events.
+     */
+    void flushDeviceEvents() {
+        DeviceProperties[] devices;
+        int[] events;
+        synchronized (mPendingDevices) {
+            mHandler.removeMessages(MESSAGE_DEVICE_EVENTS);
+            int count = mPendingDevices.size();
+            if (count == 0) return;
+
+            long now = SystemClock.elapsedRealtime();
+            devices = mPendingDevices.toArray(new DeviceProperties[count]);
+            events = new int[count];
+            for (int i = 0; i < count; i++) {
+                DeviceProperties prop = devices[i];
+                events[i] = prop.mPendingEvents;
+                mSentEventCount += prop.mPendingEventCount;
+                mTotalEventLatency += prop.mPendingEventCount * now - prop.mPendingEventTimes;
+                mMaxEventLatency = Math.max(mMaxEventLatency, now - prop.mPendingSince);
+                prop.mPendingEvents = 0;
+                prop.mPendingEventCount = 0;
+                prop.mPendingEventTimes = 0;
+            }
+            mPendingDevices.clear();
+        }
+
+        for (int i = 0; i < devices.length; i++) {
+            sendDeviceEvents(devices[i], events[i]);
+        }
+    }
+
+    /**
+     * Sends at most one broadcast per action and device, with the current
+     * properties. Change broadcasts go out before ACTION_FOUND, in the order
+     * the stack reports properties and devices.
+     */
+    private void sendDeviceEvents(DeviceProperties prop, int events) {
+        Intent intent;
+        int broadcasts = 0;
+
+        if ((events & EVENT_NAME_CHANGED) != 0) {
+            intent = new Intent(BluetoothDevice.ACTION_NAME_CHANGED);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, prop.mDevice);
+            intent.putExtra(BluetoothDevice.EXTRA_NAME, prop.mName);
+            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
+            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
+            ++broadcasts;
+        }
+        if ((events & EVENT_CLASS_CHANGED) != 0) {
+            intent = new Intent(BluetoothDevice.ACTION_CLASS_CHANGED);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, prop.mDevice);
+            intent.putExtra(BluetoothDevice.EXTRA_CLASS,
+                    new BluetoothClass(prop.mBluetoothClass));
+            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
+            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
+            ++broadcasts;
+        }
+        if ((events & EVENT_FOUND) != 0) {
+            intent = new Intent(BluetoothDevice.ACTION_FOUND);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, prop.mDevice);
+            intent.putExtra(BluetoothDevice.EXTRA_CLASS,
+                    new BluetoothClass(Integer.valueOf(prop.mBluetoothClass)));
+            intent.putExtra(BluetoothDevice.EXTRA_RSSI, prop.mRssi);
+            intent.putExtra(BluetoothDevice.EXTRA_NAME, prop.mName);
+            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
+            ++broadcasts;
+        }
+
+        synchronized (mPendingDevices) {
+            mBroadcastCount += broadcasts;
+        }
+    }
+
+    /**
+     * Resets the device event statistics when a discovery starts, and
+     * flushes pending events and reports the statistics when it stops.
+     */
+    void onDiscoveryStateChanged(boolean discovering) {
+        if (discovering) {
+            synchronized (mPendingDevices) {
+                mQueuedEventCount = 0;
+                mBroadcastCount = 0;
+                mSentEventCount = 0;
+                mTotalEventLatency = 0;
+                mMaxEventLatency = 0;
+            }
+            return;
+        }
+
+        flushDeviceEvents();
+        synchronized (mPendingDevices) {
+            Log.i(TAG, "Discovery device events: " + mQueuedEventCount
+                    + " queued, " + mBroadcastCount + " broadcasts, latency "
+                    + (mTotalEventLatency / Math.max(mSentEventCount, 1)) + "ms avg, "
+                    + mMaxEventLatency + "ms max");
+        }
     }
 
     void pinRequestCallback(byte[] address, byte[] name, int cod) {
@@ -400,12 +562,14 @@ final class RemoteDevices {
     }
 
     void aclStateChangeCallback(int status, byte[] address, int newState) {
-        BluetoothDevice device = getDevice(address);
+        DeviceProperties prop = mDevices.get(Utils.getAddressKey(address));
 
-        if (device == null) {
+        if (prop == null) {
             errorLog("aclStateChangeCallback: Device is NULL");
             return;
         }
+        BluetoothDevice device = prop.mDevice;
+        prop.mAclConnected = (newState == AbstractionLayer.BT_ACL_STATE_CONNECTED);
 
         Intent intent = null;
         if (newState == AbstractionLayer.BT_ACL_STATE_CONNECTED) {
@@ -442,6 +606,9 @@ final class RemoteDevices {
                     sendUuidIntent(device);
                 }
                 break;
+            case MESSAGE_DEVICE_EVENTS:
+                flushDeviceEvents();
+                break;
             }
         }
     };
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Helper class that extracts the service UUIDs advertised by a remote
+ * device. UUIDs are stored as (msb, lsb) pairs in reusable arrays, so that
+ * parsing an advertisement does not allocate. An instance is not thread
+ * safe and is meant to be reused from the scan callback thread.
+ * @hide
+ */
+/*package*/ class AdvertisementUuids {
+    /** Lower 64 bits of the Bluetooth base UUID */
+    static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    /** Upper 64 bits of the Bluetooth base UUID, without the short UUID */
+    static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    private static final int TYPE_UUID16_PARTIAL = 0x02;
+    private static final int TYPE_UUID16 = 0x03;
+    private static final int TYPE_UUID32_PARTIAL = 0x04;
+    private static final int TYPE_UUID32 = 0x05;
+    private static final int TYPE_UUID128_PARTIAL = 0x06;
+    private static final int TYPE_UUID128 = 0x07;
+
+    /** Advertisement and scan response data are at most 62 bytes */
+    private static final int MAX_UUIDS = 31;
+
+    private final long[] mMsb = new long[MAX_UUIDS];
+    private final long[] mLsb = new long[MAX_UUIDS];
+    private int mCount = 0;
+
+    /**
+     * Parses the AD structures in the first length bytes of adv_data,
+     * replacing the UUIDs from the previous call. Truncated or malformed
+     * structures are ignored.
+     */
+    void parse(byte[] adv_data, int length) {
+        mCount = 0;
+        if (adv_data == null) return;
+
+        int offset = 0;
+        while (offset < (length - 2)) {
+            int len = adv_data[offset++] & 0xFF;
+            if (len == 0) break;
+
+            int end = offset + len;
+            if (end > length) break;
+
+            int type = adv_data[offset++] & 0xFF;
+            switch (type) {
+                case TYPE_UUID16_PARTIAL:
+                case TYPE_UUID16:
+                    for (; offset + 2 <= end; offset += 2) {
+                        add(fromShortUuid(readLittleEndian(adv_data, offset, 2)),
+                            BASE_UUID_LSB);
+                    }
+                    break;
+
+                case TYPE_UUID32_PARTIAL:
+                case TYPE_UUID32:
+                    for (; offset + 4 <= end; offset += 4) {
+                        add(fromShortUuid(readLittleEndian(adv_data, offset, 4)),
+                            BASE_UUID_LSB);
+                    }
+                    break;
+
+                case TYPE_UUID128_PARTIAL:
+                case TYPE_UUID128:
+                    for (; offset + 16 <= end; offset += 16) {
+                        add(readLittleEndian(adv_data, offset + 8, 8),
+                            readLittleEndian(adv_data, offset, 8));
+                    }
+                    break;
+            }
+            offset = end;
+        }
+    }
+
+    /**
+     * Returns true if the last parsed advertisement contains the given UUID.
+     */
+    boolean contains(long msb, long lsb) {
+        for (int i = 0; i < mCount; i++) {
+            if (mMsb[i] == msb && mLsb[i] == lsb) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Expands a 16 or 32-bit UUID to the upper half of a full UUID.
+     */
+    static long fromShortUuid(long shortUuid) {
+        return (shortUuid << 32) | BASE_UUID_MSB;
+    }
+
+    private void add(long msb, long lsb) {
+        if (mCount == MAX_UUIDS) return;
+        mMsb[mCount] = msb;
+        mLsb[mCount] = lsb;
+        ++mCount;
+    }
+
+    private static long readLittleEndian(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -20,13 +20,17 @@ import android.os.IBinder.DeathRecipient;
 import android.os.IInterface;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Helper class that keeps track of registered GATT applications.
@@ -103,35 +107,92 @@ import java.util.UUID;
         }
     }
 
+    /**
+     * Immutable snapshot of the lookup indexes. Readers, most notably the
+     * JNI callback thread, read the current snapshot without locking.
+     * Writers copy the snapshot under mLock and publish the new one.
+     */
+    private class Registry {
+        /** Registered applications, keyed by application ID */
+        final SparseArray<App> apps;
+
+        /** Connections, keyed by connection ID */
+        final SparseArray<Connection> connections;
+
+        /** Connections per application ID, keyed by device address */
+        final SparseArray<Map<String, Connection>> appConnections;
+
+        Registry() {
+            apps = new SparseArray<App>();
+            connections = new SparseArray<Connection>();
+            appConnections = new SparseArray<Map<String, Connection>>();
+        }
+
+        Registry(Registry other) {
+            apps = other.apps.clone();
+            connections = other.connections.clone();
+            appConnections = other.appConnections.clone();
+        }
+
+        /**
+         * Returns a private copy of the per-application connection map
+         * that is safe to modify before this snapshot is published.
+         */
+        Map<String, Connection> copyAppConnections(int appId) {
+            Map<String, Connection> current = appConnections.get(appId);
+            Map<String, Connection> copy = (current != null)
+                    ? new HashMap<String, Connection>(current)
+                    : new HashMap<String, Connection>();
+            appConnections.put(appId, copy);
+            return copy;
+        }
+    }
+
+    /** Guards modifications of mApps and mRegistry */
+    private final Object mLock = new Object();
+
     /** Our internal application list */
-    List<App> mApps = new ArrayList<App>();
+    List<App> mApps = new CopyOnWriteArrayList<App>();
 
-    /** Internal list of connected devices **/
-    Set<Connection> mConnections = new HashSet<Connection>();
+    /** Current lookup snapshot */
+    private volatile Registry mRegistry = new Registry();
 
     /**
      * Add an entry to the application context list.
      */
     void add(UUID uuid, T callback) {
-        synchronized (mApps) {
+        synchronized (mLock) {
             mApps.add(new App(uuid, callback));
         }
     }
 
+    /**
+     * Assign the application ID once the stack has registered the app.
+     */
+    void setId(App app, int id) {
+        synchronized (mLock) {
+            Registry registry = new Registry(mRegistry);
+            if (registry.apps.get(app.id) == app) registry.apps.remove(app.id);
+            app.id = id;
+            registry.apps.put(id, app);
+            mRegistry = registry;
+        }
+    }
+
     /**
      * Remove the context for a given application ID.
      */
     void remove(int id) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
-            }
+        synchronized (mLock) {
+            App entry = mRegistry.apps.get(id);
+            if (entry == null) return;
+
+            entry.unlinkToDeath();
+            mApps.remove(entry);
+
+            Registry registry = new Registry(mRegistry);
+            registry.apps.remove(id);
+            mRegistry = registry;
         }
     }
 
@@ -139,11 +200,15 @@ import java.util.UUID;
      * Add a new connection for a given application ID.
      */
     void addConnection(int id, int connId, String address) {
-        synchronized (mConnections) {
+        synchronized (mLock) {
             App entry = getById(id);
-            if (entry != null){
-                mConnections.add(new Connection(connId, address, id));
-            }
+            if (entry == null) return;
+
+            Connection connection = new Connection(connId, address, id);
+            Registry registry = new Registry(mRegistry);
+            registry.connections.put(connId, connection);
+            registry.copyAppConnections(id).put(address, connection);
+            mRegistry = registry;
         }
     }
 
@@ -151,15 +216,19 @@ import java.util.UUID;
      * Remove a connection with the given ID.
      */
     void removeConnection(int id, int connId) {
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while(i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
+        synchronized (mLock) {
+            Connection connection = mRegistry.connections.get(connId);
+            if (connection == null) return;
+
+            Registry registry = new Registry(mRegistry);
+            registry.connections.remove(connId);
+
+            Map<String, Connection> connections =
+                    registry.copyAppConnections(connection.appId);
+            if (connections.get(connection.address) == connection) {
+                connections.remove(connection.address);
             }
+            mRegistry = registry;
         }
     }
 
@@ -167,13 +236,9 @@ import java.util.UUID;
      * Get an application context by ID.
      */
     App getById(int id) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.id == id) return entry;
-        }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        App entry = mRegistry.apps.get(id);
+        if (entry == null) Log.e(TAG, "Context not found for ID " + id);
+        return entry;
     }
 
     /**
@@ -194,10 +259,9 @@ import java.util.UUID;
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            addresses.add(connection.address);
+        SparseArray<Connection> connections = mRegistry.connections;
+        for (int i = 0; i < connections.size(); i++) {
+            addresses.add(connections.valueAt(i).address);
         }
         return addresses;
     }
@@ -206,52 +270,52 @@ import java.util.UUID;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        Iterator<Connection> ii = mConnections.iterator();
-        while(ii.hasNext()) {
-            Connection connection = ii.next();
-            if (connection.connId == connId){
-                return getById(connection.appId);
-            }
-        }
-        return null;
+        Registry registry = mRegistry;
+        Connection connection = registry.connections.get(connId);
+        if (connection == null) return null;
+
+        App entry = registry.apps.get(connection.appId);
+        if (entry == null) Log.e(TAG, "Context not found for ID " + connection.appId);
+        return entry;
     }
 
     /**
      * Returns a connection ID for a given device address.
      */
     Integer connIdByAddress(int id, String address) {
-        App entry = getById(id);
-        if (entry == null) return null;
-
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.address.equals(address) && connection.appId == id)
-                return connection.connId;
+        Registry registry = mRegistry;
+        if (registry.apps.get(id) == null) {
+            Log.e(TAG, "Context not found for ID " + id);
+            return null;
         }
-        return null;
+
+        Map<String, Connection> connections = registry.appConnections.get(id);
+        if (connections == null) return null;
+
+        Connection connection = connections.get(address);
+        return (connection != null) ? connection.connId : null;
     }
 
     /**
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.connId == connId) return connection.address;
-        }
-        return null;
+        Connection connection = mRegistry.connections.get(connId);
+        return (connection != null) ? connection.address : null;
+    }
+
+    /**
+     * Returns the application ID for a given connection ID.
+     */
+    Integer appIdByConnId(int connId) {
+        Connection connection = mRegistry.connections.get(connId);
+        return (connection != null) ? connection.appId : null;
     }
 
     List<Connection> getConnectionByApp(int appId) {
         List<Connection> currentConnections = new ArrayList<Connection>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.appId == appId)
-                currentConnections.add(connection);
-        }
+        Map<String, Connection> connections = mRegistry.appConnections.get(appId);
+        if (connections != null) currentConnections.addAll(connections.values());
         return currentConnections;
     }
 
@@ -259,17 +323,12 @@ import java.util.UUID;
      * Erases all application context entries.
      */
     void clear() {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
+        synchronized (mLock) {
+            for (App entry : mApps) {
                 entry.unlinkToDeath();
-                i.remove();
             }
-        }
-
-        synchronized (mConnections) {
-            mConnections.clear();
+            mApps.clear();
+            mRegistry = new Registry();
         }
     }
 
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Helper class that caches the attribute database of remote devices.
+ * Attributes are recorded per connection while a discovery is running
+ * and, once it completes, stored per device address both in memory and
+ * in a compact binary file. Files are written and deleted on a worker
+ * thread, in the order the changes were made.
+ * @hide
+ */
+/*package*/ class GattDbCache {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "GattDbCache";
+
+    public static final int TYPE_SERVICE = 1;
+    public static final int TYPE_INCLUDED_SERVICE = 2;
+    public static final int TYPE_CHARACTERISTIC = 3;
+    public static final int TYPE_DESCRIPTOR = 4;
+
+    private static final int FILE_MAGIC = 0x47444243; // "GDBC"
+    private static final int FILE_VERSION = 1;
+
+    class Entry {
+        int type;
+        int srvcType;
+        int srvcInstId;
+        long srvcUuidLsb;
+        long srvcUuidMsb;
+
+        /** Characteristic, or included service for TYPE_INCLUDED_SERVICE */
+        int charInstId;
+        long charUuidLsb;
+        long charUuidMsb;
+
+        /** Characteristic properties, or included service type */
+        int charProp;
+
+        int descrInstId;
+        long descrUuidLsb;
+        long descrUuidMsb;
+    }
+
+    private final File mDir;
+
+    /** Attributes of discoveries in progress, keyed by connection ID */
+    private final SparseArray<List<Entry>> mPending = new SparseArray<List<Entry>>();
+
+    /** Complete attribute databases, keyed by device address */
+    private final Map<String, List<Entry>> mDatabases = new HashMap<String, List<Entry>>();
+
+    /** Devices whose file is about to be deleted and must not be read */
+    private final Set<String> mDeleted = new HashSet<String>();
+
+    /** Files loaded before a database changed must not be kept */
+    private int mGeneration = 0;
+
+    private final Handler mHandler;
+
+    GattDbCache(File dir) {
+        mDir = dir;
+        HandlerThread thread = new HandlerThread("GattDbCache");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    synchronized void addService(int connId, int srvcType, int srvcInstId,
+                                 long srvcUuidLsb, long srvcUuidMsb) {
+        add(connId, newEntry(TYPE_SERVICE, srvcType, srvcInstId,
+                             srvcUuidLsb, srvcUuidMsb));
+    }
+
+    synchronized void addIncludedService(int connId, int srvcType, int srvcInstId,
+                                         long srvcUuidLsb, long srvcUuidMsb,
+                                         int inclSrvcType, int inclSrvcInstId,
+                                         long inclSrvcUuidLsb, long inclSrvcUuidMsb) {
+        Entry entry = newEntry(TYPE_INCLUDED_SERVICE, srvcType, srvcInstId,
+                               srvcUuidLsb, srvcUuidMsb);
+        entry.charProp = inclSrvcType;
+        entry.charInstId = inclSrvcInstId;
+        entry.charUuidLsb = inclSrvcUuidLsb;
+        entry.charUuidMsb = inclSrvcUuidMsb;
+        add(connId, entry);
+    }
+
+    synchronized void addCharacteristic(int connId, int srvcType, int srvcInstId,
+                                        long srvcUuidLsb, long srvcUuidMsb,
+                                        int charInstId, long charUuidLsb,
+                                        long charUuidMsb, int charProp) {
+        Entry entry = newEntry(TYPE_CHARACTERISTIC, srvcType, srvcInstId,
+                               srvcUuidLsb, srvcUuidMsb);
+        entry.charInstId = charInstId;
+        entry.charUuidLsb = charUuidLsb;
+        entry.charUuidMsb = charUuidMsb;
+        entry.charProp = charProp;
+        add(connId, entry);
+    }
+
+    synchronized void addDescriptor(int connId, int srvcType, int srvcInstId,
+                                    long srvcUuidLsb, long srvcUuidMsb,
+                                    int charInstId, long charUuidLsb, long charUuidMsb,
+                                    int descrInstId, long descrUuidLsb, long descrUuidMsb) {
+        Entry entry = newEntry(TYPE_DESCRIPTOR, srvcType, srvcInstId,
+                               srvcUuidLsb, srvcUuidMsb);
+        entry.charInstId = charInstId;
+        entry.charUuidLsb = charUuidLsb;
+        entry.charUuidMsb = charUuidMsb;
+        entry.descrInstId = descrInstId;
+        entry.descrUuidLsb = descrUuidLsb;
+        entry.descrUuidMsb = descrUuidMsb;
+        add(connId, entry);
+    }
+
+    /**
+     * Drops the attributes recorded so far for a connection.
+     */
+    synchronized void discard(int connId) {
+        mPending.remove(connId);
+    }
+
+    /**
+     * Stores the attributes recorded for a connection as the database of
+     * the given device, replacing any previous one.
+     * Returns true if the database differs from the cached one.
+     */
+    synchronized boolean commit(int connId, String address) {
+        final List<Entry> entries = mPending.get(connId);
+        mPending.remove(connId);
+        if (entries == null || address == null) return false;
+
+        if (isSame(mDatabases.get(address), entries)) return false;
+
+        final String addr = address;
+        ++mGeneration;
+        mDatabases.put(address, entries);
+        mDeleted.remove(address);
+        mHandler.post(new Runnable() {
+            public void run() {
+                write(addr, entries);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns the cached database of a device, or null if none is known.
+     * The file is loaded without holding the cache lock, so discoveries
+     * in progress are not held up.
+     */
+    List<Entry> get(String address) {
+        int generation;
+        synchronized (this) {
+            List<Entry> entries = mDatabases.get(address);
+            if (entries != null || mDeleted.contains(address)) return entries;
+            generation = mGeneration;
+        }
+
+        List<Entry> entries = read(address);
+
+        synchronized (this) {
+            if (generation != mGeneration) return mDatabases.get(address);
+            if (entries != null) mDatabases.put(address, entries);
+            return entries;
+        }
+    }
+
+    /**
+     * Forgets the cached database of a device.
+     */
+    synchronized void invalidate(String address) {
+        if (DBG) Log.d(TAG, "invalidate() - address=" + address);
+        final String addr = address;
+        ++mGeneration;
+        mDatabases.remove(address);
+        mDeleted.add(address);
+        mHandler.post(new Runnable() {
+            public void run() {
+                getFile(addr).delete();
+                synchronized (GattDbCache.this) {
+                    mDeleted.remove(addr);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the databases held in memory. Pending file changes are still
+     * carried out before the worker thread exits.
+     */
+    synchronized void clear() {
+        ++mGeneration;
+        mPending.clear();
+        mDatabases.clear();
+        mHandler.post(new Runnable() {
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    private Entry newEntry(int type, int srvcType, int srvcInstId,
+                           long srvcUuidLsb, long srvcUuidMsb) {
+        Entry entry = new Entry();
+        entry.type = type;
+        entry.srvcType = srvcType;
+        entry.srvcInstId = srvcInstId;
+        entry.srvcUuidLsb = srvcUuidLsb;
+        entry.srvcUuidMsb = srvcUuidMsb;
+        return entry;
+    }
+
+    private void add(int connId, Entry entry) {
+        List<Entry> entries = mPending.get(connId);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            mPending.put(connId, entries);
+        }
+        entries.add(entry);
+    }
+
+    private File getFile(String address) {
+        return new File(mDir, address.replace(":", ""));
+    }
+
+    private static boolean isSame(List<Entry> a, List<Entry> b) {
+        if (a == null || b == null || a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            Entry x = a.get(i);
+            Entry y = b.get(i);
+            if (x.type != y.type || x.srvcType != y.srvcType
+                    || x.srvcInstId != y.srvcInstId
+                    || x.srvcUuidLsb != y.srvcUuidLsb || x.srvcUuidMsb != y.srvcUuidMsb
+                    || x.charInstId != y.charInstId
+                    || x.charUuidLsb != y.charUuidLsb || x.charUuidMsb != y.charUuidMsb
+                    || x.charProp != y.charProp || x.descrInstId != y.descrInstId
+                    || x.descrUuidLsb != y.descrUuidLsb || x.descrUuidMsb != y.descrUuidMsb) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serializes the database. Each entry stores only the fields used by
+     * its type, as single bytes for types and instance IDs.
+     */
+    private void write(String address, List<Entry> entries) {
+        File tmp = new File(mDir, getFile(address).getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeByte(FILE_VERSION);
+            out.writeShort(entries.size());
+
+            for (Entry entry : entries) {
+                out.writeByte(entry.type);
+                out.writeByte(entry.srvcType);
+                out.writeByte(entry.srvcInstId);
+                out.writeLong(entry.srvcUuidLsb);
+                out.writeLong(entry.srvcUuidMsb);
+                if (entry.type == TYPE_SERVICE) continue;
+
+                out.writeByte(entry.charInstId);
+                out.writeLong(entry.charUuidLsb);
+                out.writeLong(entry.charUuidMsb);
+                if (entry.type != TYPE_DESCRIPTOR) {
+                    out.writeByte(entry.charProp);
+                    continue;
+                }
+
+                out.writeByte(entry.descrInstId);
+                out.writeLong(entry.descrUuidLsb);
+                out.writeLong(entry.descrUuidMsb);
+            }
+            out.close();
+            out = null;
+
+            // Readers only ever see a complete file
+            if (!tmp.renameTo(getFile(address))) {
+                Log.e(TAG, "write() - Unable to store database for " + address);
+                tmp.delete();
+                getFile(address).delete();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write() - Unable to store database for " + address + ": " + e);
+            tmp.delete();
+            getFile(address).delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "write() - " + e);
+                }
+            }
+        }
+    }
+
+    private List<Entry> read(String address) {
+        File file = getFile(address);
+        if (!file.exists()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC || in.readUnsignedByte() != FILE_VERSION) {
+                Log.w(TAG, "read() - Discarding incompatible database for " + address);
+                file.delete();
+                return null;
+            }
+
+            int count = in.readUnsignedShort();
+            List<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = newEntry(in.readUnsignedByte(), in.readUnsignedByte(),
+                                       in.readUnsignedByte(), in.readLong(), in.readLong());
+                entries.add(entry);
+                if (entry.type == TYPE_SERVICE) continue;
+
+                entry.charInstId = in.readUnsignedByte();
+                entry.charUuidLsb = in.readLong();
+                entry.charUuidMsb = in.readLong();
+                if (entry.type != TYPE_DESCRIPTOR) {
+                    entry.charProp = in.readUnsignedByte();
+                    continue;
+                }
+
+                entry.descrInstId = in.readUnsignedByte();
+                entry.descrUuidLsb = in.readLong();
+                entry.descrUuidMsb = in.readLong();
+            }
+
+            if (DBG) Log.d(TAG, "read() - " + count + " attributes for " + address);
+            return entries;
+        } catch (IOException e) {
+            Log.e(TAG, "read() - Unable to load database for " + address + ": " + e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "read() - " + e);
+                }
+            }
+        }
+    }
+}
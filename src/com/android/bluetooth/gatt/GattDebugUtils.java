@@ -34,10 +34,24 @@ import java.util.UUID;
                                 "android.bluetooth.action.DEBUG_DUMP_SERVERMAP";
     private static final String ACTION_DEBUG_DUMP_HANDLEMAP =
                                 "android.bluetooth.action.DEBUG_DUMP_HANDLEMAP";
+    private static final String ACTION_DEBUG_DUMP_OPQUEUE =
+                                "android.bluetooth.action.DEBUG_DUMP_OPQUEUE";
 
     private static final String ACTION_GATT_PAIRING_CONFIG =
                                 "android.bluetooth.action.GATT_PAIRING_CONFIG";
 
+    private static final String ACTION_GATT_SCAN_MODE =
+                                "android.bluetooth.action.GATT_SCAN_MODE";
+
+    private static final String ACTION_GATT_PREPARED_WRITES =
+                                "android.bluetooth.action.GATT_PREPARED_WRITES";
+
+    private static final String ACTION_GATT_WRITE_COALESCING =
+                                "android.bluetooth.action.GATT_WRITE_COALESCING";
+
+    private static final String ACTION_GATT_WRITE_STREAM =
+                                "android.bluetooth.action.GATT_WRITE_STREAM";
+
     private static final String ACTION_GATT_TEST_USAGE =
                                 "android.bluetooth.action.GATT_TEST_USAGE";
     private static final String ACTION_GATT_TEST_ENABLE =
@@ -60,6 +74,14 @@ import java.util.UUID;
     private static final String EXTRA_INIT_KEY = "init_key";
     private static final String EXTRA_RESP_KEY = "resp_key";
     private static final String EXTRA_MAX_KEY = "max_key";
+    private static final String EXTRA_APP_IF = "app_if";
+    private static final String EXTRA_SERVER = "server";
+    private static final String EXTRA_DEDUP_WINDOW = "dedup_window";
+    private static final String EXTRA_CHAR_UUID = "char_uuid";
+    private static final String EXTRA_SRVC_INST = "srvc_inst";
+    private static final String EXTRA_CHAR_INST = "char_inst";
+    private static final String EXTRA_LENGTH = "length";
+    private static final String EXTRA_CHUNK_SIZE = "chunk_size";
 
     /**
      * Handles intents passed in via GattService.onStartCommand().
@@ -93,6 +115,49 @@ import java.util.UUID;
         } else if (ACTION_DEBUG_DUMP_HANDLEMAP.equals(action)) {
             svc.mHandleMap.dump();
 
+        } else if (ACTION_DEBUG_DUMP_OPQUEUE.equals(action)) {
+            svc.mOpQueue.dump();
+
+        /*
+         * Scan and server delivery modes
+         */
+
+        } else if (ACTION_GATT_SCAN_MODE.equals(action)) {
+            int appIf = intent.getIntExtra(EXTRA_APP_IF, 0);
+            boolean isServer = intent.getBooleanExtra(EXTRA_SERVER, false);
+            int dedupWindow = intent.getIntExtra(EXTRA_DEDUP_WINDOW, 0);
+            svc.setScanDedupWindow(appIf, isServer, dedupWindow);
+
+        } else if (ACTION_GATT_PREPARED_WRITES.equals(action)) {
+            int appIf = intent.getIntExtra(EXTRA_APP_IF, 0);
+            boolean bEnable = intent.getBooleanExtra(EXTRA_ENABLE, true);
+            svc.setPreparedWriteReassembly(appIf, bEnable);
+
+        } else if (ACTION_GATT_WRITE_COALESCING.equals(action)) {
+            int appIf = intent.getIntExtra(EXTRA_APP_IF, 0);
+            boolean bEnable = intent.getBooleanExtra(EXTRA_ENABLE, true);
+            svc.setWriteCoalescing(appIf, bEnable);
+
+        } else if (ACTION_GATT_WRITE_STREAM.equals(action)) {
+            int appIf = intent.getIntExtra(EXTRA_APP_IF, 0);
+            String address = intent.getStringExtra(EXTRA_ADDRESS);
+            UUID srvcUuid = getUuidExtra(intent, EXTRA_UUID);
+            UUID charUuid = getUuidExtra(intent, EXTRA_CHAR_UUID);
+            int srvcInst = intent.getIntExtra(EXTRA_SRVC_INST, 0);
+            int charInst = intent.getIntExtra(EXTRA_CHAR_INST, 0);
+            int chunkSize = intent.getIntExtra(EXTRA_CHUNK_SIZE,
+                                               GattWriteStream.DEFAULT_CHUNK_SIZE);
+            byte[] payload = new byte[Math.max(intent.getIntExtra(EXTRA_LENGTH, 512), 0)];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) i;
+            }
+            if (address == null || srvcUuid == null || charUuid == null) {
+                Log.e(TAG, "handleDebugAction() - Missing address or UUID");
+            } else {
+                svc.writeCharacteristicStream(appIf, address, 0 /* primary */, srvcInst,
+                    srvcUuid, charInst, charUuid, 0, payload, chunkSize);
+            }
+
         /*
          * PTS test commands
          */
@@ -156,13 +221,17 @@ import java.util.UUID;
     }
 
     /**
-     * Retrieves the EXTRA_UUID parameter.
+     * Retrieves a UUID parameter, EXTRA_UUID unless given otherwise.
      * If a string of length 4 is detected, a 16-bit hex UUID is assumed and
      * the default Bluetooth UUID is appended.
      * @hide
      */
     static private UUID getUuidExtra(Intent intent) {
-        String uuidStr = intent.getStringExtra(EXTRA_UUID);
+        return getUuidExtra(intent, EXTRA_UUID);
+    }
+
+    static private UUID getUuidExtra(Intent intent, String extra) {
+        String uuidStr = intent.getStringExtra(extra);
         if (uuidStr != null && uuidStr.length() == 4) {
             uuidStr = String.format("0000%s-0000-1000-8000-00805f9b34fb", uuidStr);
         }
@@ -203,7 +272,26 @@ import java.util.UUID;
         b.append("\n  [--ei io_cap]        IO capabilities (default 4)");
         b.append("\n  [--ei init_key]      Initial key size (default 7)");
         b.append("\n  [--ei resp_key]      Response key size (default 7)");
-        b.append("\n  [--ei max_key]       Maximum key size (default 16)");
+        b.append("\n  [--ei max_key]       Maximum key size (default 16)\n");
+        b.append("\nGATT_SCAN_MODE");
+        b.append("\n   --ei app_if <id>     Scanning application");
+        b.append("\n  [--ez server <bool>]  Server application (default false)");
+        b.append("\n  [--ei dedup_window]   Duplicate suppression in ms (default 0)\n");
+        b.append("\nGATT_PREPARED_WRITES");
+        b.append("\n   --ei app_if <id>     Server application");
+        b.append("\n  [--ez enable <bool>]  Reassemble long writes (default true)\n");
+        b.append("\nGATT_WRITE_COALESCING");
+        b.append("\n   --ei app_if <id>     Client application");
+        b.append("\n  [--ez enable <bool>]  Coalesce queued writes (default true)\n");
+        b.append("\nGATT_WRITE_STREAM");
+        b.append("\n   --ei app_if <id>     Client application");
+        b.append("\n   --es address <bda>");
+        b.append("\n   --es uuid <uuid>     Service UUID");
+        b.append("\n   --es char_uuid <uuid> Characteristic UUID");
+        b.append("\n  [--ei srvc_inst <id>] Service instance (default 0)");
+        b.append("\n  [--ei char_inst <id>] Characteristic instance (default 0)");
+        b.append("\n  [--ei length <n>]     Test pattern length (default 512)");
+        b.append("\n  [--ei chunk_size <n>] Bytes per packet (default 20)");
         b.append("\n------------------------------------------------");
         Log.i(TAG, b.toString());
     }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import java.util.LinkedList;
+import java.util.UUID;
+
+/**
+ * Helper class serializing GATT client operations per connection.
+ * The stack allows a single outstanding ATT request per connection, so
+ * operations are queued here and the next one is started as soon as the
+ * previous one completes.
+ * @hide
+ */
+/*package*/ class GattOpQueue {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "GattOpQueue";
+
+    public static final int TYPE_READ_CHARACTERISTIC = 1;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 2;
+    public static final int TYPE_READ_DESCRIPTOR = 3;
+    public static final int TYPE_WRITE_DESCRIPTOR = 4;
+    public static final int TYPE_EXECUTE_WRITE = 5;
+    public static final int TYPE_WRITE_STREAM = 6;
+
+    /** Prepared writes are never coalesced; each one carries its own data */
+    private static final int WRITE_TYPE_PREPARED = 3;
+
+    class Operation {
+        int type;
+        int clientIf;
+        int srvcType;
+        int srvcInstId;
+        UUID srvcUuid;
+        int charInstId;
+        UUID charUuid;
+        int descrInstId;
+        UUID descrUuid;
+        int writeType;
+        int authReq;
+        byte[] value;
+        boolean execute;
+        GattWriteStream stream;
+
+        long queuedTime;
+        long startTime;
+
+        boolean isWrite() {
+            return type == TYPE_WRITE_CHARACTERISTIC || type == TYPE_WRITE_DESCRIPTOR;
+        }
+
+        /**
+         * Returns true if both operations address the same attribute in the
+         * same way, so that the later value can replace the earlier one.
+         */
+        boolean sameTarget(Operation other) {
+            return type == other.type
+                && clientIf == other.clientIf
+                && srvcType == other.srvcType
+                && srvcInstId == other.srvcInstId
+                && srvcUuid.equals(other.srvcUuid)
+                && charInstId == other.charInstId
+                && charUuid.equals(other.charUuid)
+                && descrInstId == other.descrInstId
+                && (descrUuid == null ? other.descrUuid == null
+                                      : descrUuid.equals(other.descrUuid))
+                && writeType == other.writeType
+                && authReq == other.authReq;
+        }
+    }
+
+    private class ConnectionQueue {
+        final LinkedList<Operation> pending = new LinkedList<Operation>();
+        Operation inFlight;
+    }
+
+    private final SparseArray<ConnectionQueue> mQueues = new SparseArray<ConnectionQueue>();
+    private final SparseBooleanArray mCoalescingClients = new SparseBooleanArray();
+
+    private long mCompletedCount = 0;
+    private long mCoalescedCount = 0;
+    private long mTotalLatency = 0;
+    private long mMaxLatency = 0;
+    private int mMaxDepth = 0;
+
+    Operation newOperation(int type, int clientIf) {
+        Operation op = new Operation();
+        op.type = type;
+        op.clientIf = clientIf;
+        return op;
+    }
+
+    synchronized void setCoalescing(int clientIf, boolean enable) {
+        if (enable) {
+            mCoalescingClients.put(clientIf, true);
+        } else {
+            mCoalescingClients.delete(clientIf);
+        }
+    }
+
+    /**
+     * Queues an operation on a connection.
+     * Returns true if the connection was idle and the caller must start the
+     * operation now; otherwise it is started later by complete().
+     */
+    synchronized boolean submit(int connId, Operation op) {
+        op.queuedTime = SystemClock.elapsedRealtime();
+
+        ConnectionQueue queue = mQueues.get(connId);
+        if (queue == null) {
+            queue = new ConnectionQueue();
+            mQueues.put(connId, queue);
+        }
+
+        if (queue.inFlight == null) {
+            op.startTime = op.queuedTime;
+            queue.inFlight = op;
+            return true;
+        }
+
+        if (op.isWrite() && op.writeType != WRITE_TYPE_PREPARED
+                && mCoalescingClients.get(op.clientIf)) {
+            for (Operation queued : queue.pending) {
+                if (queued.sameTarget(op)) {
+                    queued.value = op.value;
+                    ++mCoalescedCount;
+                    return false;
+                }
+            }
+        }
+
+        queue.pending.add(op);
+        mMaxDepth = Math.max(mMaxDepth, queue.pending.size());
+        return false;
+    }
+
+    /**
+     * Marks the operation in flight on a connection as completed.
+     * Returns the next operation the caller must start, or null if idle.
+     */
+    synchronized Operation complete(int connId) {
+        ConnectionQueue queue = mQueues.get(connId);
+        if (queue == null || queue.inFlight == null) return null;
+
+        long now = SystemClock.elapsedRealtime();
+        long latency = now - queue.inFlight.queuedTime;
+        ++mCompletedCount;
+        mTotalLatency += latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+
+        Operation next = queue.pending.poll();
+        queue.inFlight = next;
+        if (next != null) {
+            next.startTime = now;
+        } else {
+            mQueues.remove(connId);
+        }
+        return next;
+    }
+
+    /**
+     * Returns the operation in flight on a connection, or null if idle.
+     */
+    synchronized Operation getInFlight(int connId) {
+        ConnectionQueue queue = mQueues.get(connId);
+        return (queue != null) ? queue.inFlight : null;
+    }
+
+    /**
+     * Returns the number of operations queued or in flight on a connection.
+     */
+    synchronized int getDepth(int connId) {
+        ConnectionQueue queue = mQueues.get(connId);
+        if (queue == null) return 0;
+        return queue.pending.size() + (queue.inFlight != null ? 1 : 0);
+    }
+
+    synchronized void removeConnId(int connId) {
+        mQueues.remove(connId);
+    }
+
+    synchronized void removeClient(int clientIf) {
+        mCoalescingClients.delete(clientIf);
+    }
+
+    synchronized void clear() {
+        mQueues.clear();
+        mCoalescingClients.clear();
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump() {
+        StringBuilder b = new StringBuilder();
+        b.append(  "-------------- GATT Operation Queue ------------");
+        b.append("\nCompleted: " + mCompletedCount);
+        b.append("\nCoalesced: " + mCoalescedCount);
+        b.append("\nAverage latency: "
+            + (mCompletedCount > 0 ? mTotalLatency / mCompletedCount : 0) + "ms");
+        b.append("\nMaximum latency: " + mMaxLatency + "ms");
+        b.append("\nMaximum depth: " + mMaxDepth);
+
+        for (int i = 0; i < mQueues.size(); i++) {
+            ConnectionQueue queue = mQueues.valueAt(i);
+            b.append("\n  " + mQueues.keyAt(i) + ": " + queue.pending.size() + " pending"
+                + (queue.inFlight != null ? ", type " + queue.inFlight.type + " in flight"
+                                          : ""));
+        }
+
+        b.append("\n------------------------------------------------");
+        Log.d(TAG, b.toString());
+    }
+}
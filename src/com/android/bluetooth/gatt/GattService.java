@@ -23,14 +23,22 @@ import android.bluetooth.BluetoothProfile;
 import android.bluetooth.IBluetoothGatt;
 import android.bluetooth.IBluetoothGattCallback;
 import android.bluetooth.IBluetoothGattServerCallback;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.IBinder.DeathRecipient;
+import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -38,7 +46,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ProfileService.IProfileServiceBinder;
 
@@ -50,6 +60,11 @@ import com.android.bluetooth.btservice.ProfileService.IProfileServiceBinder;
 public class GattService extends ProfileService {
     private static final boolean DBG = GattServiceConfig.DBG;
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "GattService";
+    private static final String GATT_DB_CACHE_DIR = "gatt_cache";
+
+    /** Service Changed characteristic of the Generic Attribute service */
+    private static final UUID SERVICE_CHANGED_UUID =
+            UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
     BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
 
     /**
@@ -70,6 +85,21 @@ public class GattService extends ProfileService {
     class ServerMap extends ContextMap<IBluetoothGattServerCallback> {}
     ServerMap mServerMap = new ServerMap();
 
+    /**
+     * Per-connection queue of client read/write operations.
+     */
+    GattOpQueue mOpQueue = new GattOpQueue();
+
+    /**
+     * Cached attribute databases of bonded devices.
+     */
+    GattDbCache mGattDbCache = null;
+
+    /**
+     * Prepared write reassembly for server apps that opted in.
+     */
+    PreparedWriteQueue mPreparedWrites = new PreparedWriteQueue();
+
     /**
      * Server handle map.
      */
@@ -111,26 +141,37 @@ public class GattService extends ProfileService {
     }
 
     /**
-     * List of clients intereste in scan results.
+     * Clients interested in scan results, keyed by scanClientKey().
+     * Results are dispatched from the callback thread without locking
+     * while binder threads add and remove clients.
+     */
+    private Map<Integer, ScanClient> mScanQueue =
+            new ConcurrentHashMap<Integer, ScanClient>();
+
+    /**
+     * Scratch buffer for the UUIDs of the advertisement being dispatched.
+     * Only used from dispatchScanResult().
+     */
+    private final AdvertisementUuids mAdvertisementUuids = new AdvertisementUuids();
+
+    /**
+     * Scan results written by the native layer. Drained on mHandler, or
+     * used as scratch record by onScanResult() if the ring is not installed.
      */
-    private List<ScanClient> mScanQueue = new ArrayList<ScanClient>();
+    private final ScanResultRing mScanRing = new ScanResultRing();
+    private int mScanRingTail = 0;
+    private int mScanRingDropped = 0;
+
+    private static int scanClientKey(int appIf, boolean isServer) {
+        return (appIf << 1) | (isServer ? 1 : 0);
+    }
 
     private ScanClient getScanClient(int appIf, boolean isServer) {
-        for(ScanClient client : mScanQueue) {
-            if (client.appIf == appIf && client.isServer == isServer) {
-                return client;
-            }
-        }
-        return null;
+        return mScanQueue.get(scanClientKey(appIf, isServer));
     }
 
     private void removeScanClient(int appIf, boolean isServer) {
-        for(ScanClient client : mScanQueue) {
-            if (client.appIf == appIf && client.isServer == isServer) {
-                mScanQueue.remove(client);
-                break;
-            }
-        }
+        mScanQueue.remove(scanClientKey(appIf, isServer));
     }
 
     /**
@@ -138,6 +179,62 @@ public class GattService extends ProfileService {
      */
     private Set<String> mReliableQueue = new HashSet<String>();
 
+    private static final int MESSAGE_EXPIRE_REQUESTS = 2;
+    private static final int MESSAGE_DRAIN_SCAN_RESULTS = 3;
+    private static final int MESSAGE_OPERATION_TIMEOUT = 4;
+
+    /** Server requests are failed before the 30s ATT transaction timeout */
+    private static final int REQUEST_TIMEOUT_MS = 25000;
+
+    /** Client operations still in flight after the ATT timeout are given up */
+    private static final int OPERATION_TIMEOUT_MS = 35000;
+
+    /** Status sent for requests the application never answered */
+    private static final int GATT_ERROR = 0x85;
+
+    private static final int WRITE_TYPE_NO_RESPONSE = 1;
+
+    /**
+     * Write stream packets handed to the stack at a time. The stack queues a
+     * single request per connection, so the next packet is sent from the
+     * completion of the previous one.
+     */
+    private static final int WRITE_STREAM_CREDITS = 1;
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MESSAGE_EXPIRE_REQUESTS:
+                    expireRequests();
+                    break;
+
+                case MESSAGE_DRAIN_SCAN_RESULTS:
+                    drainScanResults();
+                    break;
+
+                case MESSAGE_OPERATION_TIMEOUT:
+                    onOperationTimeout(msg.arg1, (GattOpQueue.Operation) msg.obj);
+                    break;
+            }
+        }
+    };
+
+    /**
+     * Forgets the cached database of a device once it is unbonded.
+     */
+    private final BroadcastReceiver mBondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                                           BluetoothDevice.ERROR);
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (state == BluetoothDevice.BOND_NONE && device != null) {
+                mGattDbCache.invalidate(device.getAddress());
+            }
+        }
+    };
+
     static {
         classInitNative();
     }
@@ -152,7 +249,13 @@ public class GattService extends ProfileService {
 
     protected boolean start() {
         if (DBG) Log.d(TAG, "start()");
+        mGattDbCache = new GattDbCache(getDir(GATT_DB_CACHE_DIR, MODE_PRIVATE));
+        registerReceiver(mBondStateReceiver,
+                         new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
         initializeNative();
+        mScanRingTail = 0;
+        mScanRingDropped = 0;
+        gattClientSetScanRingNative(mScanRing.getBuffer(), ScanResultRing.SLOT_COUNT);
         return true;
     }
 
@@ -161,8 +264,13 @@ public class GattService extends ProfileService {
         mClientMap.clear();
         mServerMap.clear();
         mSearchQueue.clear();
+        mOpQueue.clear();
+        unregisterReceiver(mBondStateReceiver);
+        mGattDbCache.clear();
+        mHandler.removeCallbacksAndMessages(null);
         mScanQueue.clear();
         mHandleMap.clear();
+        mPreparedWrites.clear();
         mServiceDeclarations.clear();
         mReliableQueue.clear();
         return true;
@@ -496,44 +604,81 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onScanResult() - address=" + address
                     + ", rssi=" + rssi);
 
-        List<UUID> remoteUuids = parseUuids(adv_data);
-        for (ScanClient client : mScanQueue) {
-            if (client.uuids.length > 0) {
-                int matches = 0;
-                for (UUID search : client.uuids) {
-                    for (UUID remote: remoteUuids) {
-                        if (remote.equals(search)) {
-                            ++matches;
-                            break; // Only count 1st match in case of duplicates
-                        }
-                    }
-                }
+        if (!mScanRing.set(address, rssi, adv_data)) {
+            Log.w(TAG, "onScanResult() - Invalid address " + address);
+            return;
+        }
+        dispatchScanResult(mScanRing);
+    }
+
+    void onScanResultsAvailable() {
+        if (!mHandler.hasMessages(MESSAGE_DRAIN_SCAN_RESULTS)) {
+            mHandler.sendEmptyMessage(MESSAGE_DRAIN_SCAN_RESULTS);
+        }
+    }
 
-                if (matches < client.uuids.length) continue;
+    /**
+     * Dispatches all results written to the scan ring so far. The native
+     * layer signals again only once the ring ran empty, so keep draining
+     * until the tail catches up with the head.
+     */
+    private void drainScanResults() {
+        int tail = mScanRingTail;
+        int head;
+        int count = 0;
+        while ((head = gattClientGetScanRingHeadNative()) != tail) {
+            for (; tail != head; tail++, count++) {
+                mScanRing.read(tail);
+                dispatchScanResult(mScanRing);
             }
+            gattClientSetScanRingTailNative(tail);
+        }
+        mScanRingTail = tail;
+        if (DBG) Log.d(TAG, "drainScanResults() - count=" + count);
 
-            if (!client.isServer) {
-                ClientMap.App app = mClientMap.getById(client.appIf);
-                if (app != null) {
-                    try {
-                        app.callback.onScanResult(address, rssi, adv_data);
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Exception: " + e);
-                        mClientMap.remove(client.appIf);
-                        mScanQueue.remove(client);
-                    }
-                }
-            } else {
-                ServerMap.App app = mServerMap.getById(client.appIf);
-                if (app != null) {
-                    try {
-                        app.callback.onScanResult(address, rssi, adv_data);
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Exception: " + e);
-                        mServerMap.remove(client.appIf);
-                        mScanQueue.remove(client);
-                    }
-                }
+        int dropped = gattClientGetScanRingDroppedNative();
+        if (dropped != mScanRingDropped) {
+            Log.w(TAG, "drainScanResults() - Scan ring full, " + (dropped - mScanRingDropped)
+                + " results dropped, " + dropped + " in total");
+            mScanRingDropped = dropped;
+        }
+    }
+
+    /**
+     * Filters the current record of the scan ring for each scan client.
+     * Address string and data copy are only allocated once a client
+     * actually receives the result.
+     */
+    private void dispatchScanResult(ScanResultRing result) {
+        List<ScanClient> failedClients = null;
+        String address = null;
+        byte[] adv_data = null;
+
+        mAdvertisementUuids.parse(result.data, result.length);
+        for (ScanClient client : mScanQueue.values()) {
+            if (!client.matches(mAdvertisementUuids)) continue;
+
+            ScanDuplicateFilter filter = client.duplicateFilter;
+            if (filter != null && filter.isDuplicate(result.address, result.data,
+                    result.length, SystemClock.elapsedRealtime())) {
+                continue;
+            }
+
+            if (address == null) {
+                address = Utils.getAddressStringFromKey(result.address);
+                adv_data = result.copyData();
+            }
+            int rssi = result.rssi;
+
+            if (!deliverScanResult(client, address, rssi, adv_data)) {
+                if (failedClients == null) failedClients = new ArrayList<ScanClient>();
+                failedClients.add(client);
+            }
+        }
+
+        if (failedClients != null) {
+            for (ScanClient client : failedClients) {
+                reapScanClient(client);
             }
         }
     }
@@ -544,7 +689,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onClientRegistered() - UUID=" + uuid + ", clientIf=" + clientIf);
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
-            app.id = clientIf;
+            mClientMap.setId(app, clientIf);
             app.linkToDeath(new ClientDeathRecipient(clientIf));
             app.callback.onClientRegistered(status, clientIf);
         }
@@ -569,6 +714,8 @@ public class GattService extends ProfileService {
 
         mClientMap.removeConnection(clientIf, connId);
         mSearchQueue.removeConnId(connId);
+        mOpQueue.removeConnId(connId);
+        mGattDbCache.discard(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -590,8 +737,9 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onSearchResult() - address=" + address + ", uuid=" + uuid);
 
         mSearchQueue.add(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+        mGattDbCache.addService(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
+        ClientMap.App app = getSearchClient(connId);
         if (app != null) {
             app.callback.onGetService(address, srvcType, srvcInstId,
                                         new ParcelUuid(uuid));
@@ -614,8 +762,11 @@ public class GattService extends ProfileService {
             mSearchQueue.add(connId, srvcType,
                             srvcInstId, srvcUuidLsb, srvcUuidMsb,
                             charInstId, charUuidLsb, charUuidMsb);
+            mGattDbCache.addCharacteristic(connId, srvcType,
+                            srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                            charInstId, charUuidLsb, charUuidMsb, charProp);
 
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            ClientMap.App app = getSearchClient(connId);
             if (app != null) {
                 app.callback.onGetCharacteristic(address, srvcType,
                             srvcInstId, new ParcelUuid(srvcUuid),
@@ -648,7 +799,12 @@ public class GattService extends ProfileService {
             + ", status=" + status + ", descUuid=" + descUuid);
 
         if (status == 0) {
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            mGattDbCache.addDescriptor(connId, srvcType,
+                            srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                            charInstId, charUuidLsb, charUuidMsb,
+                            descrInstId, descrUuidLsb, descrUuidMsb);
+
+            ClientMap.App app = getSearchClient(connId);
             if (app != null) {
                 app.callback.onGetDescriptor(address, srvcType,
                             srvcInstId, new ParcelUuid(srvcUuid),
@@ -680,7 +836,11 @@ public class GattService extends ProfileService {
             + ", inclUuid=" + inclSrvcUuid);
 
         if (status == 0) {
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            mGattDbCache.addIncludedService(connId, srvcType,
+                            srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                            inclSrvcType, inclSrvcInstId, inclSrvcUuidLsb, inclSrvcUuidMsb);
+
+            ClientMap.App app = getSearchClient(connId);
             if (app != null) {
                 app.callback.onGetIncludedService(address,
                     srvcType, srvcInstId, new ParcelUuid(srvcUuid),
@@ -719,6 +879,11 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onNotify() - address=" + address
             + ", charUuid=" + charUuid + ", length=" + data.length);
 
+        if (SERVICE_CHANGED_UUID.equals(charUuid)) {
+            // The remote database changed; the cached copy is stale
+            mGattDbCache.invalidate(address);
+        }
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onNotify(address, srvcType,
@@ -740,6 +905,8 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onReadCharacteristic() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
+        startNextOperation(connId);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onCharacteristicRead(address, status, srvcType,
@@ -760,6 +927,21 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onWriteCharacteristic() - address=" + address
             + ", status=" + status);
 
+        GattOpQueue.Operation op = mOpQueue.getInFlight(connId);
+        if (op != null && op.type == GattOpQueue.TYPE_WRITE_STREAM) {
+            op.stream.onChunkComplete(status);
+            if (!op.stream.isDone()) {
+                startOperationTimeout(connId, op);
+                sendWriteStream(connId, op);
+                return;
+            }
+            if (DBG) Log.d(TAG, "onWriteCharacteristic() - stream done, sent="
+                + op.stream.getBytesSent());
+            status = op.stream.getStatus();
+        }
+
+        startNextOperation(connId);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onCharacteristicWrite(address, status, srvcType,
@@ -773,6 +955,8 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onExecuteCompleted() - address=" + address
             + ", status=" + status);
 
+        startNextOperation(connId);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onExecuteWrite(address, status);
@@ -793,6 +977,8 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onReadDescriptor() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
+        startNextOperation(connId);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onDescriptorRead(address, status, srvcType,
@@ -815,6 +1001,8 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onWriteDescriptor() - address=" + address
             + ", status=" + status);
 
+        startNextOperation(connId);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onDescriptorWrite(address, status, srvcType,
@@ -899,9 +1087,9 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "startScan() - queue=" + mScanQueue.size());
 
-        if (getScanClient(appIf, isServer) == null) {
-            if (DBG) Log.d(TAG, "startScan() - adding client=" + appIf);
-            mScanQueue.add(new ScanClient(appIf, isServer));
+        ScanClient client = new ScanClient(appIf, isServer);
+        if (mScanQueue.putIfAbsent(scanClientKey(appIf, isServer), client) == null) {
+            if (DBG) Log.d(TAG, "startScan() - added client=" + appIf);
         }
 
         gattClientScanNative(appIf, true);
@@ -912,9 +1100,9 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "startScanWithUuids() - queue=" + mScanQueue.size());
 
-        if (getScanClient(appIf, isServer) == null) {
-            if (DBG) Log.d(TAG, "startScanWithUuids() - adding client=" + appIf);
-            mScanQueue.add(new ScanClient(appIf, isServer, uuids));
+        ScanClient client = new ScanClient(appIf, isServer, uuids);
+        if (mScanQueue.putIfAbsent(scanClientKey(appIf, isServer), client) == null) {
+            if (DBG) Log.d(TAG, "startScanWithUuids() - added client=" + appIf);
         }
 
         gattClientScanNative(appIf, true);
@@ -932,6 +1120,27 @@ public class GattService extends ProfileService {
         }
     }
 
+    /**
+     * Configures duplicate suppression for an active scan client.
+     * Identical advertisements from the same device are dropped for
+     * dedupWindowMs. Passing 0 delivers every result again.
+     */
+    void setScanDedupWindow(int appIf, boolean isServer, int dedupWindowMs) {
+        enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH_ADMIN permission");
+
+        if (DBG) Log.d(TAG, "setScanDedupWindow() - appIf=" + appIf
+                    + ", dedupWindowMs=" + dedupWindowMs);
+
+        ScanClient client = getScanClient(appIf, isServer);
+        if (client == null) {
+            Log.e(TAG, "setScanDedupWindow() - No scan active for " + appIf + "...");
+            return;
+        }
+
+        client.duplicateFilter = (dedupWindowMs > 0)
+                ? new ScanDuplicateFilter(dedupWindowMs) : null;
+    }
+
     /**************************************************************************
      * GATT Service functions - CLIENT
      *************************************************************************/
@@ -949,6 +1158,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "unregisterClient() - clientIf=" + clientIf);
+        mOpQueue.removeClient(clientIf);
         mClientMap.remove(clientIf);
         gattClientUnregisterAppNative(clientIf);
     }
@@ -988,6 +1198,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
+        mGattDbCache.invalidate(address);
         gattClientRefreshNative(clientIf, address);
     }
 
@@ -997,10 +1208,17 @@ public class GattService extends ProfileService {
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
 
-        if (connId != null)
+        if (connId != null) {
+            // The stack must still walk the remote database to resolve later
+            // requests, but a cached database answers the client right away.
+            boolean answered = replayCachedDatabase(clientIf, address);
+
+            mSearchQueue.start(connId, answered);
+            mGattDbCache.discard(connId);
             gattClientSearchServiceNative(connId, true, 0, 0);
-        else
+        } else {
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
+        }
     }
 
     void readCharacteristic(int clientIf, String address, int srvcType,
@@ -1011,14 +1229,19 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "readCharacteristic() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
-            gattClientReadCharacteristicNative(connId, srvcType,
-                srvcInstanceId, srvcUuid.getLeastSignificantBits(),
-                srvcUuid.getMostSignificantBits(), charInstanceId,
-                charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
-                authReq);
-        else
+        if (connId != null) {
+            GattOpQueue.Operation op = mOpQueue.newOperation(
+                GattOpQueue.TYPE_READ_CHARACTERISTIC, clientIf);
+            op.srvcType = srvcType;
+            op.srvcInstId = srvcInstanceId;
+            op.srvcUuid = srvcUuid;
+            op.charInstId = charInstanceId;
+            op.charUuid = charUuid;
+            op.authReq = authReq;
+            submitOperation(connId, op);
+        } else {
             Log.e(TAG, "readCharacteristic() - No connection for " + address + "...");
+        }
     }
 
     void writeCharacteristic(int clientIf, String address, int srvcType,
@@ -1032,14 +1255,21 @@ public class GattService extends ProfileService {
         if (mReliableQueue.contains(address)) writeType = 3; // Prepared write
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
-            gattClientWriteCharacteristicNative(connId, srvcType,
-                srvcInstanceId, srvcUuid.getLeastSignificantBits(),
-                srvcUuid.getMostSignificantBits(), charInstanceId,
-                charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
-                writeType, authReq, value);
-        else
+        if (connId != null) {
+            GattOpQueue.Operation op = mOpQueue.newOperation(
+                GattOpQueue.TYPE_WRITE_CHARACTERISTIC, clientIf);
+            op.srvcType = srvcType;
+            op.srvcInstId = srvcInstanceId;
+            op.srvcUuid = srvcUuid;
+            op.charInstId = charInstanceId;
+            op.charUuid = charUuid;
+            op.writeType = writeType;
+            op.authReq = authReq;
+            op.value = value;
+            submitOperation(connId, op);
+        } else {
             Log.e(TAG, "writeCharacteristic() - No connection for " + address + "...");
+        }
     }
 
     void readDescriptor(int clientIf, String address, int srvcType,
@@ -1052,17 +1282,21 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "readDescriptor() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
-            gattClientReadDescriptorNative(connId, srvcType,
-                srvcInstanceId,
-                srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
-                charInstanceId,
-                charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
-                descrInstanceId,
-                descrUuid.getLeastSignificantBits(), descrUuid.getMostSignificantBits(),
-                authReq);
-        else
+        if (connId != null) {
+            GattOpQueue.Operation op = mOpQueue.newOperation(
+                GattOpQueue.TYPE_READ_DESCRIPTOR, clientIf);
+            op.srvcType = srvcType;
+            op.srvcInstId = srvcInstanceId;
+            op.srvcUuid = srvcUuid;
+            op.charInstId = charInstanceId;
+            op.charUuid = charUuid;
+            op.descrInstId = descrInstanceId;
+            op.descrUuid = descrUuid;
+            op.authReq = authReq;
+            submitOperation(connId, op);
+        } else {
             Log.e(TAG, "readDescriptor() - No connection for " + address + "...");
+        }
     };
 
     void writeDescriptor(int clientIf, String address, int srvcType,
@@ -1075,17 +1309,23 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "writeDescriptor() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
-            gattClientWriteDescriptorNative(connId, srvcType,
-                srvcInstanceId,
-                srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
-                charInstanceId,
-                charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
-                descrInstanceId,
-                descrUuid.getLeastSignificantBits(), descrUuid.getMostSignificantBits(),
-                writeType, authReq, value);
-        else
+        if (connId != null) {
+            GattOpQueue.Operation op = mOpQueue.newOperation(
+                GattOpQueue.TYPE_WRITE_DESCRIPTOR, clientIf);
+            op.srvcType = srvcType;
+            op.srvcInstId = srvcInstanceId;
+            op.srvcUuid = srvcUuid;
+            op.charInstId = charInstanceId;
+            op.charUuid = charUuid;
+            op.descrInstId = descrInstanceId;
+            op.descrUuid = descrUuid;
+            op.writeType = writeType;
+            op.authReq = authReq;
+            op.value = value;
+            submitOperation(connId, op);
+        } else {
             Log.e(TAG, "writeDescriptor() - No connection for " + address + "...");
+        }
     }
 
     void beginReliableWrite(int clientIf, String address) {
@@ -1103,7 +1343,63 @@ public class GattService extends ProfileService {
         mReliableQueue.remove(address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null) gattClientExecuteWriteNative(connId, execute);
+        if (connId != null) {
+            GattOpQueue.Operation op = mOpQueue.newOperation(
+                GattOpQueue.TYPE_EXECUTE_WRITE, clientIf);
+            op.execute = execute;
+            submitOperation(connId, op);
+        }
+    }
+
+    /**
+     * Writes a large value to a characteristic as a stream of
+     * write-without-response packets of at most chunkSize bytes.
+     * The client is called back once, after the last packet was sent
+     * or the first packet failed.
+     */
+    void writeCharacteristicStream(int clientIf, String address, int srvcType,
+                                   int srvcInstanceId, UUID srvcUuid,
+                                   int charInstanceId, UUID charUuid,
+                                   int authReq, byte[] payload, int chunkSize) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        if (DBG) Log.d(TAG, "writeCharacteristicStream() - address=" + address
+            + ", length=" + payload.length + ", chunkSize=" + chunkSize);
+
+        if (payload.length == 0) {
+            writeCharacteristic(clientIf, address, srvcType, srvcInstanceId, srvcUuid,
+                charInstanceId, charUuid, WRITE_TYPE_NO_RESPONSE, authReq, payload);
+            return;
+        }
+
+        Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        if (connId != null) {
+            GattOpQueue.Operation op = mOpQueue.newOperation(
+                GattOpQueue.TYPE_WRITE_STREAM, clientIf);
+            op.srvcType = srvcType;
+            op.srvcInstId = srvcInstanceId;
+            op.srvcUuid = srvcUuid;
+            op.charInstId = charInstanceId;
+            op.charUuid = charUuid;
+            op.authReq = authReq;
+            op.stream = new GattWriteStream(payload, chunkSize, WRITE_STREAM_CREDITS);
+            submitOperation(connId, op);
+        } else {
+            Log.e(TAG, "writeCharacteristicStream() - No connection for " + address + "...");
+        }
+    }
+
+    /**
+     * Enables or disables coalescing of queued writes for a client. When
+     * enabled, a write to an attribute that already has a write waiting in
+     * the queue replaces the waiting value instead of being queued.
+     */
+    void setWriteCoalescing(int clientIf, boolean enable) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        if (DBG) Log.d(TAG, "setWriteCoalescing() - clientIf=" + clientIf
+            + ", enable=" + enable);
+        mOpQueue.setCoalescing(clientIf, enable);
     }
 
     void registerForNotification(int clientIf, String address, int srvcType,
@@ -1153,7 +1449,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setId(app, serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -1237,6 +1533,8 @@ public class GattService extends ProfileService {
             mServerMap.addConnection(serverIf, connId, address);
         } else {
             mServerMap.removeConnection(serverIf, connId);
+            mPreparedWrites.cancel(connId);
+            mHandleMap.deleteRequests(connId);
         }
 
         app.callback.onServerConnectionState((byte)0, serverIf, connected, address);
@@ -1255,11 +1553,11 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onAttributeRead() UUID=" + entry.uuid
             + ", serverIf=" + entry.serverIf + ", type=" + entry.type);
 
-        mHandleMap.addRequest(transId, attrHandle);
-
         ServerMap.App app = mServerMap.getById(entry.serverIf);
         if (app == null) return;
 
+        trackRequest(entry.serverIf, connId, transId, attrHandle);
+
         switch(entry.type) {
             case HandleMap.TYPE_CHARACTERISTIC:
             {
@@ -1305,40 +1603,21 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onAttributeWrite() UUID=" + entry.uuid
             + ", serverIf=" + entry.serverIf + ", type=" + entry.type);
 
-        mHandleMap.addRequest(transId, attrHandle);
+        if (isPrep && mPreparedWrites.isEnabled(entry.serverIf)) {
+            // Collect the fragment here; the app sees the assembled value
+            int status = mPreparedWrites.add(connId, attrHandle, offset, data);
+            gattServerSendResponseNative(entry.serverIf, connId, transId, status,
+                                         attrHandle, offset, data, 0);
+            return;
+        }
 
         ServerMap.App app = mServerMap.getById(entry.serverIf);
         if (app == null) return;
 
-        switch(entry.type) {
-            case HandleMap.TYPE_CHARACTERISTIC:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                app.callback.onCharacteristicWriteRequest(address, transId,
-                            offset, length, isPrep, needRsp,
-                            serviceEntry.serviceType, serviceEntry.instance,
-                            new ParcelUuid(serviceEntry.uuid), entry.instance,
-                            new ParcelUuid(entry.uuid), data);
-                break;
-            }
+        if (needRsp) trackRequest(entry.serverIf, connId, transId, attrHandle);
 
-            case HandleMap.TYPE_DESCRIPTOR:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
-                app.callback.onDescriptorWriteRequest(address, transId,
-                            offset, length, isPrep, needRsp,
-                            serviceEntry.serviceType, serviceEntry.instance,
-                            new ParcelUuid(serviceEntry.uuid), charEntry.instance,
-                            new ParcelUuid(charEntry.uuid),
-                            new ParcelUuid(entry.uuid), data);
-                break;
-            }
-
-            default:
-                Log.e(TAG, "onAttributeWrite() - Requested unknown attribute type.");
-                break;
-        }
+        deliverWriteRequest(app, entry, address, transId, offset, length,
+                            isPrep, needRsp, data);
     }
 
     void onExecuteWrite(String address, int connId, int transId, int execWrite)
@@ -1346,9 +1625,16 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onExecuteWrite() connId=" + connId
             + ", address=" + address + ", transId=" + transId);
 
+        if (mPreparedWrites.hasPending(connId)) {
+            executePreparedWrites(address, connId, transId, execWrite == 1);
+            return;
+        }
+
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
+        // The app must answer the execute write request too
+        trackRequest(app.id, connId, transId, 0);
         app.callback.onExecuteWrite(address, transId, execWrite == 1);
     }
 
@@ -1376,6 +1662,7 @@ public class GattService extends ProfileService {
 
         deleteServices(serverIf);
 
+        mPreparedWrites.setEnabled(serverIf, false);
         mServerMap.remove(serverIf);
         gattServerUnregisterAppNative(serverIf);
     }
@@ -1396,6 +1683,19 @@ public class GattService extends ProfileService {
         gattServerDisconnectNative(serverIf, address, connId != null ? connId : 0);
     }
 
+    /**
+     * Enables or disables prepared write reassembly for a server app.
+     * When enabled, long writes are collected here and delivered to the
+     * app as a single write request once the client executes them.
+     */
+    void setPreparedWriteReassembly(int serverIf, boolean enable) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        if (DBG) Log.d(TAG, "setPreparedWriteReassembly() - serverIf=" + serverIf
+            + ", enable=" + enable);
+        mPreparedWrites.setEnabled(serverIf, enable);
+    }
+
     void beginServiceDeclaration(int serverIf, int srvcType, int srvcInstanceId,
                                  int minHandles, UUID srvcUuid) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
@@ -1466,16 +1766,24 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "sendResponse() - address=" + address);
 
-        int handle = 0;
-        HandleMap.Entry entry = mHandleMap.getByRequestId(requestId);
-        if (entry != null) handle = entry.handle;
+        // A request that already expired or was evicted has been answered
+        int handle = mHandleMap.deleteRequest(requestId);
+        if (handle < 0) {
+            Log.w(TAG, "sendResponse() - Dropping response to unknown request " + requestId);
+            return;
+        }
 
         int connId = mServerMap.connIdByAddress(serverIf, address);
         gattServerSendResponseNative(serverIf, connId, requestId, (byte)status,
                                      handle, offset, value, (byte)0);
-        mHandleMap.deleteRequest(requestId);
     }
 
+    /**
+     * Sends a notification, or an indication if confirm is set, to a
+     * connected device. A null address sends the value to every device
+     * connected to the server; the characteristic is then resolved once
+     * for all of them.
+     */
     void sendNotification(int serverIf, String address, int srvcType,
                                  int srvcInstanceId, UUID srvcUuid,
                                  int charInstanceId, UUID charUuid,
@@ -1484,20 +1792,23 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "sendNotification() - address=" + address);
 
-        int srvcHandle = mHandleMap.getServiceHandle(srvcUuid, srvcType, srvcInstanceId);
-        if (srvcHandle == 0) return;
-
-        int charHandle = mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
+        int charHandle = resolveCharacteristicHandle(srvcType, srvcInstanceId, srvcUuid,
+                                                     charInstanceId, charUuid);
         if (charHandle == 0) return;
 
-        int connId = mServerMap.connIdByAddress(serverIf, address);
-        if (connId == 0) return;
-
-        if (confirm) {
-            gattServerSendIndicationNative(serverIf, charHandle, connId, value);
-        } else {
-            gattServerSendNotificationNative(serverIf, charHandle, connId, value);
+        if (address == null) {
+            List<ServerMap.Connection> connections = mServerMap.getConnectionByApp(serverIf);
+            if (DBG) Log.d(TAG, "sendNotification() - devices=" + connections.size());
+            for (ServerMap.Connection connection : connections) {
+                sendValue(serverIf, charHandle, connection.connId, confirm, value);
+            }
+            return;
         }
+
+        Integer connId = mServerMap.connIdByAddress(serverIf, address);
+        if (connId == null || connId == 0) return;
+
+        sendValue(serverIf, charHandle, connId, confirm, value);
     }
 
     /**************************************************************************
@@ -1511,9 +1822,323 @@ public class GattService extends ProfileService {
         return type;
     }
 
+    private int resolveCharacteristicHandle(int srvcType, int srvcInstanceId,
+                                            UUID srvcUuid, int charInstanceId,
+                                            UUID charUuid) {
+        int srvcHandle = mHandleMap.getServiceHandle(srvcUuid, srvcType, srvcInstanceId);
+        if (srvcHandle == 0) return 0;
+
+        return mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
+    }
+
+    private void sendValue(int serverIf, int charHandle, int connId,
+                           boolean confirm, byte[] value) {
+        if (confirm) {
+            gattServerSendIndicationNative(serverIf, charHandle, connId, value);
+        } else {
+            gattServerSendNotificationNative(serverIf, charHandle, connId, value);
+        }
+    }
+
+    private void deliverWriteRequest(ServerMap.App app, HandleMap.Entry entry,
+                                     String address, int transId, int offset,
+                                     int length, boolean isPrep, boolean needRsp,
+                                     byte[] data) throws RemoteException {
+        switch(entry.type) {
+            case HandleMap.TYPE_CHARACTERISTIC:
+            {
+                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                app.callback.onCharacteristicWriteRequest(address, transId,
+                            offset, length, isPrep, needRsp,
+                            serviceEntry.serviceType, serviceEntry.instance,
+                            new ParcelUuid(serviceEntry.uuid), entry.instance,
+                            new ParcelUuid(entry.uuid), data);
+                break;
+            }
+
+            case HandleMap.TYPE_DESCRIPTOR:
+            {
+                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
+                app.callback.onDescriptorWriteRequest(address, transId,
+                            offset, length, isPrep, needRsp,
+                            serviceEntry.serviceType, serviceEntry.instance,
+                            new ParcelUuid(serviceEntry.uuid), charEntry.instance,
+                            new ParcelUuid(charEntry.uuid),
+                            new ParcelUuid(entry.uuid), data);
+                break;
+            }
+
+            default:
+                Log.e(TAG, "deliverWriteRequest() - Requested unknown attribute type.");
+                break;
+        }
+    }
+
+    /**
+     * Delivers the values reassembled from prepared writes, one write per
+     * attribute, and answers the execute write request on behalf of the app.
+     */
+    private void executePreparedWrites(String address, int connId, int transId,
+                                       boolean execute) throws RemoteException {
+        List<PreparedWriteQueue.Buffer> buffers = mPreparedWrites.remove(connId);
+        if (buffers == null) return;
+
+        try {
+            for (PreparedWriteQueue.Buffer buffer : buffers) {
+                if (!execute) break;
+                HandleMap.Entry entry = mHandleMap.getByHandle(buffer.handle);
+                if (entry == null) continue;
+
+                ServerMap.App app = mServerMap.getById(entry.serverIf);
+                if (app == null) continue;
+
+                byte[] value = Arrays.copyOf(buffer.data, buffer.length);
+                deliverWriteRequest(app, entry, address, transId, 0, value.length,
+                                    false, false, value);
+            }
+        } finally {
+            mPreparedWrites.release(buffers);
+        }
+
+        Integer serverIf = mServerMap.appIdByConnId(connId);
+        if (serverIf == null) {
+            Log.w(TAG, "executePreparedWrites() - No server for connId=" + connId);
+            return;
+        }
+        gattServerSendResponseNative(serverIf, connId, transId,
+                                     PreparedWriteQueue.STATUS_SUCCESS, 0, 0, null, 0);
+    }
+
+    /**
+     * Tracks a server request until the application responds, failing it
+     * automatically if no response arrives within REQUEST_TIMEOUT_MS.
+     */
+    private void trackRequest(int serverIf, int connId, int transId, int handle) {
+        RequestTable.Request evicted = new RequestTable.Request();
+        long deadline = SystemClock.elapsedRealtime() + REQUEST_TIMEOUT_MS;
+
+        if (mHandleMap.addRequest(serverIf, connId, transId, handle, deadline, evicted)) {
+            Log.w(TAG, "trackRequest() - Request table full, failing request "
+                + evicted.transId);
+            gattServerSendResponseNative(evicted.serverIf, evicted.connId, evicted.transId,
+                                         GATT_ERROR, evicted.handle, 0, null, 0);
+        }
+
+        if (!mHandler.hasMessages(MESSAGE_EXPIRE_REQUESTS)) {
+            mHandler.sendEmptyMessageDelayed(MESSAGE_EXPIRE_REQUESTS, REQUEST_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Fails all server requests whose deadline has passed and schedules the
+     * next check for the earliest remaining deadline.
+     */
+    private void expireRequests() {
+        long now = SystemClock.elapsedRealtime();
+        RequestTable.Request expired = new RequestTable.Request();
+
+        while (mHandleMap.mRequests.pollExpired(now, expired)) {
+            Log.w(TAG, "expireRequests() - No response for request " + expired.transId
+                + ", handle=" + expired.handle);
+            gattServerSendResponseNative(expired.serverIf, expired.connId, expired.transId,
+                                         GATT_ERROR, expired.handle, 0, null, 0);
+        }
+
+        long nextDeadline = mHandleMap.mRequests.getNextDeadline();
+        if (nextDeadline >= 0) {
+            mHandler.sendEmptyMessageDelayed(MESSAGE_EXPIRE_REQUESTS,
+                                             Math.max(0, nextDeadline - now));
+        }
+    }
+
+    private void submitOperation(int connId, GattOpQueue.Operation op) {
+        if (mOpQueue.submit(connId, op)) {
+            startOperation(connId, op);
+        } else if (DBG) {
+            Log.d(TAG, "submitOperation() - queued, depth=" + mOpQueue.getDepth(connId));
+        }
+    }
+
+    /**
+     * Completes the operation in flight on a connection and starts the next
+     * queued one, if any.
+     */
+    private void startNextOperation(int connId) {
+        GattOpQueue.Operation op;
+        synchronized (mOpQueue) {
+            GattOpQueue.Operation done = mOpQueue.getInFlight(connId);
+            if (done != null) mHandler.removeMessages(MESSAGE_OPERATION_TIMEOUT, done);
+            op = mOpQueue.complete(connId);
+        }
+        if (op != null) startOperation(connId, op);
+    }
+
+    private void startOperationTimeout(int connId, GattOpQueue.Operation op) {
+        mHandler.removeMessages(MESSAGE_OPERATION_TIMEOUT, op);
+        mHandler.sendMessageDelayed(
+            mHandler.obtainMessage(MESSAGE_OPERATION_TIMEOUT, connId, 0, op),
+            OPERATION_TIMEOUT_MS);
+    }
+
+    /**
+     * Fails an operation the stack never completed, so that the operations
+     * queued behind it on the connection are not held up.
+     */
+    private void onOperationTimeout(int connId, GattOpQueue.Operation op) {
+        GattOpQueue.Operation next;
+        synchronized (mOpQueue) {
+            // The stack may have completed it in the meantime
+            if (mOpQueue.getInFlight(connId) != op) return;
+            next = mOpQueue.complete(connId);
+        }
+
+        String address = mClientMap.addressByConnId(connId);
+        Log.w(TAG, "onOperationTimeout() - address=" + address + ", type=" + op.type);
+        if (next != null) startOperation(connId, next);
+
+        ClientMap.App app = mClientMap.getById(op.clientIf);
+        if (app == null) return;
+
+        try {
+            if (op.type == GattOpQueue.TYPE_EXECUTE_WRITE) {
+                app.callback.onExecuteWrite(address, GATT_ERROR);
+                return;
+            }
+
+            ParcelUuid srvcUuid = new ParcelUuid(op.srvcUuid);
+            ParcelUuid charUuid = new ParcelUuid(op.charUuid);
+            switch (op.type) {
+                case GattOpQueue.TYPE_READ_CHARACTERISTIC:
+                    app.callback.onCharacteristicRead(address, GATT_ERROR, op.srvcType,
+                        op.srvcInstId, srvcUuid, op.charInstId, charUuid, new byte[0]);
+                    break;
+
+                case GattOpQueue.TYPE_WRITE_CHARACTERISTIC:
+                case GattOpQueue.TYPE_WRITE_STREAM:
+                    app.callback.onCharacteristicWrite(address, GATT_ERROR, op.srvcType,
+                        op.srvcInstId, srvcUuid, op.charInstId, charUuid);
+                    break;
+
+                case GattOpQueue.TYPE_READ_DESCRIPTOR:
+                    app.callback.onDescriptorRead(address, GATT_ERROR, op.srvcType,
+                        op.srvcInstId, srvcUuid, op.charInstId, charUuid,
+                        op.descrInstId, new ParcelUuid(op.descrUuid), new byte[0]);
+                    break;
+
+                case GattOpQueue.TYPE_WRITE_DESCRIPTOR:
+                    app.callback.onDescriptorWrite(address, GATT_ERROR, op.srvcType,
+                        op.srvcInstId, srvcUuid, op.charInstId, charUuid,
+                        op.descrInstId, new ParcelUuid(op.descrUuid));
+                    break;
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "onOperationTimeout() - Exception: " + e);
+        }
+    }
+
+    private void startOperation(int connId, GattOpQueue.Operation op) {
+        startOperationTimeout(connId, op);
+        switch (op.type) {
+            case GattOpQueue.TYPE_READ_CHARACTERISTIC:
+                gattClientReadCharacteristicNative(connId, op.srvcType,
+                    op.srvcInstId, op.srvcUuid.getLeastSignificantBits(),
+                    op.srvcUuid.getMostSignificantBits(), op.charInstId,
+                    op.charUuid.getLeastSignificantBits(), op.charUuid.getMostSignificantBits(),
+                    op.authReq);
+                break;
+
+            case GattOpQueue.TYPE_WRITE_CHARACTERISTIC:
+                gattClientWriteCharacteristicNative(connId, op.srvcType,
+                    op.srvcInstId, op.srvcUuid.getLeastSignificantBits(),
+                    op.srvcUuid.getMostSignificantBits(), op.charInstId,
+                    op.charUuid.getLeastSignificantBits(), op.charUuid.getMostSignificantBits(),
+                    op.writeType, op.authReq, op.value);
+                break;
+
+            case GattOpQueue.TYPE_READ_DESCRIPTOR:
+                gattClientReadDescriptorNative(connId, op.srvcType,
+                    op.srvcInstId,
+                    op.srvcUuid.getLeastSignificantBits(), op.srvcUuid.getMostSignificantBits(),
+                    op.charInstId,
+                    op.charUuid.getLeastSignificantBits(), op.charUuid.getMostSignificantBits(),
+                    op.descrInstId,
+                    op.descrUuid.getLeastSignificantBits(), op.descrUuid.getMostSignificantBits(),
+                    op.authReq);
+                break;
+
+            case GattOpQueue.TYPE_WRITE_DESCRIPTOR:
+                gattClientWriteDescriptorNative(connId, op.srvcType,
+                    op.srvcInstId,
+                    op.srvcUuid.getLeastSignificantBits(), op.srvcUuid.getMostSignificantBits(),
+                    op.charInstId,
+                    op.charUuid.getLeastSignificantBits(), op.charUuid.getMostSignificantBits(),
+                    op.descrInstId,
+                    op.descrUuid.getLeastSignificantBits(), op.descrUuid.getMostSignificantBits(),
+                    op.writeType, op.authReq, op.value);
+                break;
+
+            case GattOpQueue.TYPE_EXECUTE_WRITE:
+                gattClientExecuteWriteNative(connId, op.execute);
+                break;
+
+            case GattOpQueue.TYPE_WRITE_STREAM:
+                sendWriteStream(connId, op);
+                break;
+        }
+    }
+
+    /**
+     * Hands packets of a write stream to the stack while credits last.
+     */
+    private void sendWriteStream(int connId, GattOpQueue.Operation op) {
+        while (op.stream.canSend()) {
+            gattClientWriteCharacteristicNative(connId, op.srvcType,
+                op.srvcInstId, op.srvcUuid.getLeastSignificantBits(),
+                op.srvcUuid.getMostSignificantBits(), op.charInstId,
+                op.charUuid.getLeastSignificantBits(), op.charUuid.getMostSignificantBits(),
+                WRITE_TYPE_NO_RESPONSE, op.authReq, op.stream.nextChunk());
+        }
+    }
+
+    /**
+     * Delivers a scan result to a client.
+     * Returns false if the client could not be reached and should be reaped.
+     */
+    private boolean deliverScanResult(ScanClient client, String address, int rssi,
+                                      byte[] adv_data) {
+        try {
+            if (!client.isServer) {
+                ClientMap.App app = mClientMap.getById(client.appIf);
+                if (app != null) app.callback.onScanResult(address, rssi, adv_data);
+            } else {
+                ServerMap.App app = mServerMap.getById(client.appIf);
+                if (app != null) app.callback.onScanResult(address, rssi, adv_data);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters a client whose callback failed during dispatch.
+     * Must not be called while iterating over the scan queue.
+     */
+    private void reapScanClient(ScanClient client) {
+        if (DBG) Log.d(TAG, "reapScanClient() - removing client=" + client.appIf);
+        removeScanClient(client.appIf, client.isServer);
+        if (!client.isServer) {
+            mClientMap.remove(client.appIf);
+        } else {
+            mServerMap.remove(client.appIf);
+        }
+    }
+
     private void continueSearch(int connId, int status) throws RemoteException {
-        if (status == 0 && !mSearchQueue.isEmpty()) {
-            SearchQueue.Entry svc = mSearchQueue.pop();
+        if (status == 0 && !mSearchQueue.isEmpty(connId)) {
+            SearchQueue.Entry svc = mSearchQueue.pop(connId);
 
             if (svc.charUuidLsb == 0) {
                 // Characteristic is up next
@@ -1526,13 +2151,108 @@ public class GattService extends ProfileService {
                     svc.charInstId, svc.charUuidLsb, svc.charUuidMsb, 0, 0, 0);
             }
         } else {
+            boolean silent = mSearchQueue.isSilent(connId);
+            long duration = mSearchQueue.finish(connId);
+            if (DBG) Log.d(TAG, "continueSearch() - connId=" + connId
+                + ", status=" + status + ", completed in " + duration + "ms");
+
+            String address = mClientMap.addressByConnId(connId);
+            boolean changed = false;
+            if (status == 0 && isBonded(address)) {
+                changed = mGattDbCache.commit(connId, address);
+            } else {
+                mGattDbCache.discard(connId);
+            }
+
+            if (silent) {
+                // The client was answered from the cache. If the cache turned
+                // out stale, or could not be confirmed, fail the search so the
+                // client drops its attributes and discovers again.
+                if (status == 0 && !changed) return;
+                Log.w(TAG, "continueSearch() - Cached database of " + address
+                    + " is " + (changed ? "stale" : "unconfirmed") + ", status=" + status);
+                if (!changed && address != null) mGattDbCache.invalidate(address);
+                if (status == 0) status = GATT_ERROR;
+            }
+
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
-                app.callback.onSearchComplete(mClientMap.addressByConnId(connId), status);
+                app.callback.onSearchComplete(address, status);
             }
         }
     }
 
+    /**
+     * Returns the client to report discovery results of a connection to,
+     * or null if it was already answered from the cache.
+     */
+    private ClientMap.App getSearchClient(int connId) {
+        if (mSearchQueue.isSilent(connId)) return null;
+        return mClientMap.getByConnId(connId);
+    }
+
+    private boolean isBonded(String address) {
+        if (address == null) return false;
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        return device.getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    /**
+     * Reports the cached attribute database of a bonded device to a client
+     * without waiting for the remote database to be walked again.
+     * Returns false if no cached database is available.
+     */
+    private boolean replayCachedDatabase(int clientIf, String address) {
+        if (!isBonded(address)) return false;
+
+        List<GattDbCache.Entry> entries = mGattDbCache.get(address);
+        if (entries == null) return false;
+
+        ClientMap.App app = mClientMap.getById(clientIf);
+        if (app == null) return false;
+
+        if (DBG) Log.d(TAG, "replayCachedDatabase() - address=" + address
+            + ", attributes=" + entries.size());
+
+        try {
+            for (GattDbCache.Entry entry : entries) {
+                ParcelUuid srvcUuid = new ParcelUuid(
+                        new UUID(entry.srvcUuidMsb, entry.srvcUuidLsb));
+                switch (entry.type) {
+                    case GattDbCache.TYPE_SERVICE:
+                        app.callback.onGetService(address, entry.srvcType,
+                            entry.srvcInstId, srvcUuid);
+                        break;
+
+                    case GattDbCache.TYPE_INCLUDED_SERVICE:
+                        app.callback.onGetIncludedService(address, entry.srvcType,
+                            entry.srvcInstId, srvcUuid, entry.charProp, entry.charInstId,
+                            new ParcelUuid(new UUID(entry.charUuidMsb, entry.charUuidLsb)));
+                        break;
+
+                    case GattDbCache.TYPE_CHARACTERISTIC:
+                        app.callback.onGetCharacteristic(address, entry.srvcType,
+                            entry.srvcInstId, srvcUuid, entry.charInstId,
+                            new ParcelUuid(new UUID(entry.charUuidMsb, entry.charUuidLsb)),
+                            entry.charProp);
+                        break;
+
+                    case GattDbCache.TYPE_DESCRIPTOR:
+                        app.callback.onGetDescriptor(address, entry.srvcType,
+                            entry.srvcInstId, srvcUuid, entry.charInstId,
+                            new ParcelUuid(new UUID(entry.charUuidMsb, entry.charUuidLsb)),
+                            entry.descrInstId,
+                            new ParcelUuid(new UUID(entry.descrUuidMsb, entry.descrUuidLsb)));
+                        break;
+                }
+            }
+            app.callback.onSearchComplete(address, 0);
+        } catch (RemoteException e) {
+            Log.e(TAG, "replayCachedDatabase() - Exception: " + e);
+        }
+        return true;
+    }
+
     private void continueServiceDeclaration(int serverIf, int status, int srvcHandle) throws RemoteException {
         if (mServiceDeclarations.size() == 0) return;
         if (DBG) Log.d(TAG, "continueServiceDeclaration() - srvcHandle=" + srvcHandle);
@@ -1647,36 +2367,6 @@ public class GattService extends ProfileService {
         }
     }
 
-    private List<UUID> parseUuids(byte[] adv_data) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while(offset < (adv_data.length-2)) {
-            int len = adv_data[offset++];
-            if (len == 0) break;
-
-            int type = adv_data[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = adv_data[offset++];
-                        uuid16 += (adv_data[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format(
-                            "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-
-                default:
-                    offset += (len - 1);
-                    break;
-            }
-        }
-
-        return uuids;
-    }
-
     /**************************************************************************
      * GATT Test functions
      *************************************************************************/
@@ -1712,6 +2402,14 @@ public class GattService extends ProfileService {
 
     private native void gattClientScanNative(int clientIf, boolean start);
 
+    private native void gattClientSetScanRingNative(ByteBuffer ring, int slots);
+
+    private native int gattClientGetScanRingHeadNative();
+
+    private native void gattClientSetScanRingTailNative(int tail);
+
+    private native int gattClientGetScanRingDroppedNative();
+
     private native void gattClientConnectNative(int clientIf, String address,
             boolean isDirect);
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Helper class splitting a large characteristic value into a stream of
+ * write-without-response packets. Sending is paced by credits: each packet
+ * handed to the stack consumes one credit, and the credit is returned when
+ * the stack reports the packet as sent.
+ * @hide
+ */
+/*package*/ class GattWriteStream {
+    /** Default ATT MTU (23) minus the write command header */
+    static final int DEFAULT_CHUNK_SIZE = 20;
+
+    /** Maximum length of an attribute value */
+    static final int MAX_CHUNK_SIZE = 512;
+
+    private static final int GATT_SUCCESS = 0;
+
+    private final byte[] mPayload;
+    private final int mChunkSize;
+    private final byte[] mChunk;
+
+    private int mOffset = 0;
+    private int mCredits;
+    private int mOutstanding = 0;
+    private int mStatus = GATT_SUCCESS;
+
+    GattWriteStream(byte[] payload, int chunkSize, int credits) {
+        if (chunkSize <= 0) chunkSize = DEFAULT_CHUNK_SIZE;
+        mPayload = payload;
+        mChunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+        mChunk = new byte[mChunkSize];
+        mCredits = Math.max(credits, 1);
+    }
+
+    /**
+     * Returns true if another packet may be sent now.
+     */
+    boolean canSend() {
+        return mStatus == GATT_SUCCESS && mCredits > 0 && mOffset < mPayload.length;
+    }
+
+    /**
+     * Returns the next packet and consumes a credit. Full-sized packets share
+     * one buffer, which is safe since the stack copies the value when it is
+     * handed over.
+     */
+    byte[] nextChunk() {
+        int length = Math.min(mChunkSize, mPayload.length - mOffset);
+        byte[] chunk = (length == mChunkSize) ? mChunk : new byte[length];
+        System.arraycopy(mPayload, mOffset, chunk, 0, length);
+        mOffset += length;
+        --mCredits;
+        ++mOutstanding;
+        return chunk;
+    }
+
+    /**
+     * Returns the credit of a sent packet. The first failure stops the
+     * stream; packets already handed to the stack are still accounted for.
+     */
+    void onChunkComplete(int status) {
+        if (mOutstanding == 0) return;
+        --mOutstanding;
+        ++mCredits;
+        if (status != GATT_SUCCESS && mStatus == GATT_SUCCESS) mStatus = status;
+    }
+
+    /**
+     * Returns true once the whole payload was sent, or the stream failed,
+     * and no packet is outstanding anymore.
+     */
+    boolean isDone() {
+        return mOutstanding == 0
+            && (mStatus != GATT_SUCCESS || mOffset >= mPayload.length);
+    }
+
+    int getStatus() {
+        return mStatus;
+    }
+
+    int getBytesSent() {
+        return mOffset;
+    }
+}
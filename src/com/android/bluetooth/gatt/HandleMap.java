@@ -16,6 +16,7 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -73,112 +74,199 @@ class HandleMap {
     }
 
     List<Entry> mEntries = null;
-    Map<Integer, Integer> mRequestMap = null;
+    RequestTable mRequests = null;
     int mLastCharacteristic = 0;
 
+    /**
+     * Lookup indexes over mEntries. Attribute handles map directly to their
+     * entry, while services and characteristics are grouped by UUID and then
+     * keyed by a packed (scope, instance) value, see {@link #indexKey}.
+     */
+    private SparseArray<Entry> mHandleIndex = null;
+    private Map<UUID, SparseArray<Entry>> mServiceIndex = null;
+    private Map<UUID, SparseArray<Entry>> mCharacteristicIndex = null;
+
     HandleMap() {
         mEntries = new ArrayList<Entry>();
-        mRequestMap = new HashMap<Integer, Integer>();
+        mRequests = new RequestTable();
+        mHandleIndex = new SparseArray<Entry>();
+        mServiceIndex = new HashMap<UUID, SparseArray<Entry>>();
+        mCharacteristicIndex = new HashMap<UUID, SparseArray<Entry>>();
     }
 
     void clear() {
         mEntries.clear();
-        mRequestMap.clear();
+        mRequests.clear();
+        mHandleIndex.clear();
+        mServiceIndex.clear();
+        mCharacteristicIndex.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance));
+        addEntry(new Entry(serverIf, handle, uuid, serviceType, instance));
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
+        addEntry(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
     }
 
     void setStarted(int serverIf, int handle, boolean started) {
-        for(Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE ||
-                entry.serverIf != serverIf ||
-                entry.handle != handle)
-                continue;
-
-            entry.started = started;
+        Entry entry = mHandleIndex.get(handle);
+        if (entry == null ||
+            entry.type != TYPE_SERVICE ||
+            entry.serverIf != serverIf)
             return;
-        }
+
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for(Entry entry : mEntries) {
-            if (entry.handle == handle)
-                return entry;
-        }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        Entry entry = mHandleIndex.get(handle);
+        if (entry == null)
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
+        return entry;
     }
 
     int getServiceHandle(UUID uuid, int serviceType, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE &&
-                entry.serviceType == serviceType &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
-        }
+        Entry entry = lookup(mServiceIndex, uuid, serviceType, instance);
+        if (entry != null) return entry.handle;
+
         Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
         return 0;
     }
 
     int getCharacteristicHandle(int serviceHandle, UUID uuid, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_CHARACTERISTIC &&
-                entry.serviceHandle == serviceHandle &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
-        }
+        Entry entry = lookup(mCharacteristicIndex, uuid, serviceHandle, instance);
+        if (entry != null) return entry.handle;
+
         Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
                     + ", UUID " + uuid + " not found!");
         return 0;
     }
 
     void deleteService(int serverIf, int serviceHandle) {
+        boolean removed = false;
         for(Iterator <Entry> it = mEntries.iterator(); it.hasNext();) {
             Entry entry = it.next();
             if (entry.serverIf != serverIf) continue;
 
             if (entry.handle == serviceHandle ||
-                entry.serviceHandle == serviceHandle)
+                entry.serviceHandle == serviceHandle) {
                 it.remove();
+                removed = true;
+            }
         }
+
+        /*
+         * Services are deleted rarely compared to how often attributes are
+         * looked up, so simply rebuild the indexes from the remaining entries.
+         * This also restores any entry that was shadowed by a removed one.
+         */
+        if (removed) reindex();
     }
 
     List<Entry> getEntries() {
         return mEntries;
     }
 
-    void addRequest(int requestId, int handle) {
-        mRequestMap.put(requestId, handle);
+    /**
+     * Tracks a request that awaits a response from the application.
+     * Returns true if the table was full and the oldest request was evicted
+     * into the given holder; the caller must answer it.
+     */
+    boolean addRequest(int serverIf, int connId, int requestId, int handle,
+                       long deadline, RequestTable.Request evicted) {
+        return mRequests.add(serverIf, connId, requestId, handle, deadline, evicted);
     }
 
-    void deleteRequest(int requestId) {
-        mRequestMap.remove(requestId);
+    /**
+     * Removes a pending request and returns its attribute handle, or -1 if
+     * the request is unknown because it was already answered.
+     */
+    int deleteRequest(int requestId) {
+        return mRequests.remove(requestId);
+    }
+
+    /**
+     * Drops the requests of a connection that went away.
+     */
+    void deleteRequests(int connId) {
+        mRequests.removeConnection(connId);
     }
 
     Entry getByRequestId(int requestId) {
-        Integer handle = mRequestMap.get(requestId);
-        if (handle == null) {
+        int handle = mRequests.getHandle(requestId);
+        if (handle < 0) {
             Log.e(TAG, "getByRequestId() - Request ID " + requestId + " not found!");
             return null;
         }
         return getByHandle(handle);
     }
 
+    private void addEntry(Entry entry) {
+        mEntries.add(entry);
+        index(entry);
+    }
+
+    private void reindex() {
+        mHandleIndex.clear();
+        mServiceIndex.clear();
+        mCharacteristicIndex.clear();
+        for (Entry entry : mEntries) {
+            index(entry);
+        }
+    }
+
+    /**
+     * Adds an entry to the lookup indexes. The first entry registered for a
+     * given key wins, matching the order in which entries were added.
+     */
+    private void index(Entry entry) {
+        if (mHandleIndex.get(entry.handle) == null)
+            mHandleIndex.put(entry.handle, entry);
+
+        switch(entry.type) {
+            case TYPE_SERVICE:
+                insert(mServiceIndex, entry.uuid, entry.serviceType, entry.instance, entry);
+                break;
+
+            case TYPE_CHARACTERISTIC:
+                insert(mCharacteristicIndex, entry.uuid, entry.serviceHandle, entry.instance, entry);
+                break;
+        }
+    }
+
+    private static void insert(Map<UUID, SparseArray<Entry>> index,
+                               UUID uuid, int scope, int instance, Entry entry) {
+        SparseArray<Entry> entries = index.get(uuid);
+        if (entries == null) {
+            entries = new SparseArray<Entry>();
+            index.put(uuid, entries);
+        }
+
+        int key = indexKey(scope, instance);
+        if (entries.get(key) == null) entries.put(key, entry);
+    }
+
+    private static Entry lookup(Map<UUID, SparseArray<Entry>> index,
+                                UUID uuid, int scope, int instance) {
+        SparseArray<Entry> entries = index.get(uuid);
+        if (entries == null) return null;
+        return entries.get(indexKey(scope, instance));
+    }
+
+    /**
+     * Packs the scope (service type or service handle) and the instance ID
+     * into a single key. Both are 16-bit values on the wire.
+     */
+    private static int indexKey(int scope, int instance) {
+        return (scope << 16) | (instance & 0xFFFF);
+    }
 
     /**
      * Logs debug information.
@@ -187,7 +275,9 @@ class HandleMap {
         StringBuilder b = new StringBuilder();
         b.append(  "-------------- GATT Handle Map -----------------");
         b.append("\nEntries: " + mEntries.size());
-        b.append("\nRequests: " + mRequestMap.size());
+        b.append("\nRequests: " + mRequests.size());
+        b.append("\nExpired requests: " + mRequests.getExpiredCount());
+        b.append("\nEvicted requests: " + mRequests.getEvictedCount());
 
         for (Entry entry : mEntries) {
             b.append("\n" + entry.serverIf + ": [" + entry.handle + "] ");
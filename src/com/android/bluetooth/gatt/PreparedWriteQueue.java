@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper class reassembling prepared (long) writes on behalf of GATT
+ * server applications that opted in. Fragments are collected per
+ * connection and attribute handle in pooled buffers, and handed out
+ * as complete values once the client executes the write.
+ * @hide
+ */
+/*package*/ class PreparedWriteQueue {
+    /** Maximum length of an attribute value */
+    static final int MAX_ATTR_LEN = 512;
+
+    /** Maximum number of handles with fragments pending per connection */
+    static final int MAX_PENDING_HANDLES = 4;
+
+    /** Number of idle buffers kept for reuse */
+    private static final int POOL_SIZE = 8;
+
+    static final int STATUS_SUCCESS = 0x00;
+    static final int STATUS_INVALID_OFFSET = 0x07;
+    static final int STATUS_PREPARE_QUEUE_FULL = 0x09;
+
+    class Buffer {
+        int handle;
+        int length;
+        final byte[] data = new byte[MAX_ATTR_LEN];
+    }
+
+    private final SparseBooleanArray mEnabledServers = new SparseBooleanArray();
+    private final SparseArray<List<Buffer>> mQueues = new SparseArray<List<Buffer>>();
+    private final List<Buffer> mPool = new ArrayList<Buffer>();
+
+    synchronized void setEnabled(int serverIf, boolean enabled) {
+        if (enabled) {
+            mEnabledServers.put(serverIf, true);
+        } else {
+            mEnabledServers.delete(serverIf);
+        }
+    }
+
+    synchronized boolean isEnabled(int serverIf) {
+        return mEnabledServers.get(serverIf);
+    }
+
+    /**
+     * Appends a fragment to the value being prepared for the given handle.
+     * Fragments must be contiguous, and at most MAX_PENDING_HANDLES handles
+     * may be prepared at once on a connection; returns an ATT status code.
+     */
+    synchronized int add(int connId, int handle, int offset, byte[] value) {
+        List<Buffer> queue = mQueues.get(connId);
+
+        Buffer buffer = null;
+        if (queue != null) {
+            for (Buffer b : queue) {
+                if (b.handle == handle) {
+                    buffer = b;
+                    break;
+                }
+            }
+        }
+
+        int expectedOffset = (buffer != null) ? buffer.length : 0;
+        if (offset != expectedOffset) return STATUS_INVALID_OFFSET;
+        if (offset + value.length > MAX_ATTR_LEN) return STATUS_PREPARE_QUEUE_FULL;
+        if (buffer == null && queue != null && queue.size() >= MAX_PENDING_HANDLES) {
+            return STATUS_PREPARE_QUEUE_FULL;
+        }
+
+        // Only accepted fragments may create the queue of a connection
+        if (queue == null) {
+            queue = new ArrayList<Buffer>();
+            mQueues.put(connId, queue);
+        }
+        if (buffer == null) {
+            buffer = obtain();
+            buffer.handle = handle;
+            queue.add(buffer);
+        }
+
+        System.arraycopy(value, 0, buffer.data, offset, value.length);
+        buffer.length = offset + value.length;
+        return STATUS_SUCCESS;
+    }
+
+    /**
+     * Returns true if fragments are pending for the given connection.
+     */
+    synchronized boolean hasPending(int connId) {
+        return mQueues.get(connId) != null;
+    }
+
+    /**
+     * Removes and returns the buffers prepared on a connection. The caller
+     * must hand them back through release() once consumed.
+     */
+    synchronized List<Buffer> remove(int connId) {
+        List<Buffer> queue = mQueues.get(connId);
+        mQueues.remove(connId);
+        return queue;
+    }
+
+    /**
+     * Discards all fragments prepared on a connection.
+     */
+    synchronized void cancel(int connId) {
+        List<Buffer> queue = remove(connId);
+        if (queue != null) release(queue);
+    }
+
+    synchronized void release(List<Buffer> buffers) {
+        for (Buffer buffer : buffers) {
+            if (mPool.size() >= POOL_SIZE) break;
+            buffer.length = 0;
+            mPool.add(buffer);
+        }
+    }
+
+    synchronized void clear() {
+        mEnabledServers.clear();
+        mQueues.clear();
+    }
+
+    private Buffer obtain() {
+        int last = mPool.size() - 1;
+        return (last >= 0) ? mPool.remove(last) : new Buffer();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Helper class tracking GATT server transactions that still await a
+ * response from the application. Requests are stored in fixed-size
+ * primitive arrays using open addressing on the transaction ID, and each
+ * request carries a deadline after which it is reported as expired.
+ * @hide
+ */
+/*package*/ class RequestTable {
+    /** Must be a power of two */
+    static final int CAPACITY = 128;
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * Request removed from the table because it expired or was evicted.
+     */
+    static class Request {
+        int serverIf;
+        int connId;
+        int transId;
+        int handle;
+    }
+
+    private final boolean[] mUsed = new boolean[CAPACITY];
+    private final int[] mTransIds = new int[CAPACITY];
+    private final int[] mHandles = new int[CAPACITY];
+    private final int[] mServerIfs = new int[CAPACITY];
+    private final int[] mConnIds = new int[CAPACITY];
+    private final long[] mDeadlines = new long[CAPACITY];
+
+    private int mSize = 0;
+    private long mExpiredCount = 0;
+    private long mEvictedCount = 0;
+
+    /**
+     * Adds a request. If the table is full, the request with the earliest
+     * deadline is evicted into the given holder and true is returned so the
+     * caller can answer it; otherwise false is returned.
+     */
+    synchronized boolean add(int serverIf, int connId, int transId, int handle,
+                             long deadline, Request evicted) {
+        boolean didEvict = false;
+        int slot = find(transId);
+        if (slot < 0) {
+            if (mSize == CAPACITY) {
+                int oldest = findEarliestDeadline();
+                copyTo(oldest, evicted);
+                removeSlot(oldest);
+                ++mEvictedCount;
+                didEvict = true;
+            }
+
+            slot = hash(transId);
+            while (mUsed[slot]) slot = (slot + 1) & MASK;
+            mUsed[slot] = true;
+            ++mSize;
+        }
+
+        mTransIds[slot] = transId;
+        mHandles[slot] = handle;
+        mServerIfs[slot] = serverIf;
+        mConnIds[slot] = connId;
+        mDeadlines[slot] = deadline;
+        return didEvict;
+    }
+
+    /**
+     * Returns the attribute handle of a request, or -1 if it is unknown.
+     */
+    synchronized int getHandle(int transId) {
+        int slot = find(transId);
+        return (slot < 0) ? -1 : mHandles[slot];
+    }
+
+    /**
+     * Removes a request and returns its attribute handle, or -1 if it is
+     * unknown. Only the caller that removed a request may answer it.
+     */
+    synchronized int remove(int transId) {
+        int slot = find(transId);
+        if (slot < 0) return -1;
+
+        int handle = mHandles[slot];
+        removeSlot(slot);
+        return handle;
+    }
+
+    /**
+     * Removes all requests of a connection.
+     */
+    synchronized void removeConnection(int connId) {
+        int i = 0;
+        while (i < CAPACITY) {
+            if (mUsed[i] && mConnIds[i] == connId) {
+                // Removal may shift a later entry into this slot; check it again
+                removeSlot(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Removes the request with the earliest deadline if that deadline is at
+     * or before now, copying it into the given holder. Returns false if no
+     * request has expired.
+     */
+    synchronized boolean pollExpired(long now, Request expired) {
+        int slot = findEarliestDeadline();
+        if (slot < 0 || mDeadlines[slot] > now) return false;
+
+        copyTo(slot, expired);
+        removeSlot(slot);
+        ++mExpiredCount;
+        return true;
+    }
+
+    /**
+     * Returns the earliest deadline of all requests, or -1 if empty.
+     */
+    synchronized long getNextDeadline() {
+        int slot = findEarliestDeadline();
+        return (slot < 0) ? -1 : mDeadlines[slot];
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) mUsed[i] = false;
+        mSize = 0;
+    }
+
+    private static int hash(int transId) {
+        return (transId ^ (transId >>> 16)) & MASK;
+    }
+
+    private int find(int transId) {
+        int slot = hash(transId);
+        for (int i = 0; i < CAPACITY && mUsed[slot]; i++) {
+            if (mTransIds[slot] == transId) return slot;
+            slot = (slot + 1) & MASK;
+        }
+        return -1;
+    }
+
+    private int findEarliestDeadline() {
+        int earliest = -1;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (mUsed[i] && (earliest < 0 || mDeadlines[i] < mDeadlines[earliest])) {
+                earliest = i;
+            }
+        }
+        return earliest;
+    }
+
+    private void copyTo(int slot, Request request) {
+        request.serverIf = mServerIfs[slot];
+        request.connId = mConnIds[slot];
+        request.transId = mTransIds[slot];
+        request.handle = mHandles[slot];
+    }
+
+    /**
+     * Frees a slot and shifts following entries of the same probe sequence
+     * back, so lookups never stop early at the freed slot.
+     */
+    private void removeSlot(int slot) {
+        mUsed[slot] = false;
+        --mSize;
+
+        int next = slot;
+        while (true) {
+            next = (next + 1) & MASK;
+            if (!mUsed[next]) return;
+
+            int home = hash(mTransIds[next]);
+            boolean reachable = (slot <= next)
+                    ? (slot < home && home <= next)
+                    : (slot < home || home <= next);
+            if (reachable) continue;
+
+            mUsed[slot] = true;
+            mTransIds[slot] = mTransIds[next];
+            mHandles[slot] = mHandles[next];
+            mServerIfs[slot] = mServerIfs[next];
+            mConnIds[slot] = mConnIds[next];
+            mDeadlines[slot] = mDeadlines[next];
+            mUsed[next] = false;
+            slot = next;
+        }
+    }
+}
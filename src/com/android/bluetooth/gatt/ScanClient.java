@@ -27,15 +27,38 @@ import java.util.UUID;
     boolean isServer;
     UUID[] uuids;
 
+    /** Optional suppression of repeated results, null if disabled */
+    volatile ScanDuplicateFilter duplicateFilter;
+
+    /** Filter UUIDs, pre-split so matching does not touch UUID objects */
+    private final long[] mUuidMsb;
+    private final long[] mUuidLsb;
+
     ScanClient(int appIf, boolean isServer) {
-        this.appIf = appIf;
-        this.isServer = isServer;
-        this.uuids = new UUID[0];
+        this(appIf, isServer, new UUID[0]);
     }
 
     ScanClient(int appIf, boolean isServer, UUID[] uuids) {
         this.appIf = appIf;
         this.isServer = isServer;
         this.uuids = uuids;
+
+        mUuidMsb = new long[uuids.length];
+        mUuidLsb = new long[uuids.length];
+        for (int i = 0; i < uuids.length; i++) {
+            mUuidMsb[i] = uuids[i].getMostSignificantBits();
+            mUuidLsb[i] = uuids[i].getLeastSignificantBits();
+        }
+    }
+
+    /**
+     * Returns true if the advertisement contains all of the UUIDs this
+     * client filters on. Clients without a filter match everything.
+     */
+    boolean matches(AdvertisementUuids remoteUuids) {
+        for (int i = 0; i < mUuidMsb.length; i++) {
+            if (!remoteUuids.contains(mUuidMsb[i], mUuidLsb[i])) return false;
+        }
+        return true;
     }
 }
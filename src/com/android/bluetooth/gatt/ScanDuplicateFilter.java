@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.LongSparseArray;
+
+/**
+ * Helper class implementing the optional duplicate suppression of a
+ * scan client. Advertisements repeated by the same device with an
+ * identical payload are suppressed for a configurable window.
+ * @hide
+ */
+/*package*/ class ScanDuplicateFilter {
+    /** Upper bound of remembered devices before expired ones are purged */
+    private static final int MAX_TRACKED_DEVICES = 256;
+
+    private class Seen {
+        int payloadHash;
+        long timestamp;
+    }
+
+    final int dedupWindowMs;
+
+    /** Keyed by packed device address */
+    private final LongSparseArray<Seen> mSeen = new LongSparseArray<Seen>();
+
+    ScanDuplicateFilter(int dedupWindowMs) {
+        this.dedupWindowMs = dedupWindowMs;
+    }
+
+    /**
+     * Returns true if the same device sent the same payload within the
+     * de-duplication window. Otherwise the advertisement is remembered.
+     */
+    synchronized boolean isDuplicate(long address, byte[] advData, int length, long now) {
+        if (dedupWindowMs <= 0) return false;
+
+        int payloadHash = 1;
+        for (int i = 0; i < length; i++) {
+            payloadHash = 31 * payloadHash + advData[i];
+        }
+
+        Seen seen = mSeen.get(address);
+        if (seen != null && seen.payloadHash == payloadHash
+                && now - seen.timestamp < dedupWindowMs) {
+            return true;
+        }
+
+        if (seen == null) {
+            if (mSeen.size() >= MAX_TRACKED_DEVICES) purgeExpired(now);
+            seen = new Seen();
+            mSeen.put(address, seen);
+        }
+        seen.payloadHash = payloadHash;
+        seen.timestamp = now;
+        return false;
+    }
+
+    private void purgeExpired(long now) {
+        for (int i = mSeen.size() - 1; i >= 0; i--) {
+            if (now - mSeen.valueAt(i).timestamp >= dedupWindowMs) mSeen.removeAt(i);
+        }
+        if (mSeen.size() >= MAX_TRACKED_DEVICES) mSeen.clear();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import com.android.bluetooth.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Helper class wrapping the direct buffer into which the native layer
+ * writes scan results. The buffer is divided into fixed-size slots holding
+ * the device address packed into a long, the RSSI and the advertisement
+ * data. read() loads a slot into the public fields of this object, so that
+ * results can be filtered without allocating.
+ * The slot layout must match jni/com_android_bluetooth_gatt.cpp.
+ * @hide
+ */
+/*package*/ class ScanResultRing {
+    /** Must be a power of two */
+    static final int SLOT_COUNT = 256;
+    static final int SLOT_SIZE = 80;
+
+    private static final int ADDRESS_OFFSET = 0;
+    private static final int RSSI_OFFSET = 8;
+    private static final int LENGTH_OFFSET = 12;
+    private static final int DATA_OFFSET = 16;
+
+    /** Advertisement and scan response data are at most 62 bytes */
+    static final int MAX_DATA_LEN = 62;
+
+    private final ByteBuffer mBuffer;
+
+    long address;
+    int rssi;
+    int length;
+    final byte[] data = new byte[MAX_DATA_LEN];
+
+    ScanResultRing() {
+        mBuffer = ByteBuffer.allocateDirect(SLOT_COUNT * SLOT_SIZE);
+        mBuffer.order(ByteOrder.nativeOrder());
+    }
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Loads the result at the given position of the ring.
+     */
+    void read(int position) {
+        int offset = (position & (SLOT_COUNT - 1)) * SLOT_SIZE;
+        address = mBuffer.getLong(offset + ADDRESS_OFFSET);
+        rssi = mBuffer.getInt(offset + RSSI_OFFSET);
+        length = Math.min(mBuffer.getInt(offset + LENGTH_OFFSET), MAX_DATA_LEN);
+        mBuffer.position(offset + DATA_OFFSET);
+        mBuffer.get(data, 0, length);
+    }
+
+    /**
+     * Loads a result delivered as objects, when the ring is not in use.
+     * Returns false if the address is malformed.
+     */
+    boolean set(String address, int rssi, byte[] data) {
+        this.address = Utils.getAddressKey(address);
+        if (this.address < 0) return false;
+        this.rssi = rssi;
+        length = Math.min(data.length, MAX_DATA_LEN);
+        System.arraycopy(data, 0, this.data, 0, length);
+        return true;
+    }
+
+    /**
+     * Returns a copy of the current advertisement data.
+     */
+    byte[] copyData() {
+        return Arrays.copyOf(data, length);
+    }
+}
@@ -16,13 +16,15 @@
 
 package com.android.bluetooth.gatt;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import java.util.LinkedList;
 
 /**
  * Helper class to store characteristics and descriptors that will be
- * queued up for future exploration.
+ * queued up for future exploration. Each connection has its own queue,
+ * so discoveries on different connections proceed independently.
  * @hide
  */
 /*package*/ class SearchQueue {
@@ -37,9 +39,16 @@ import java.util.List;
         public long charUuidMsb;
     }
 
-    private List<Entry> mEntries = new ArrayList<Entry>();
+    /** Pending entries per connection, explored independently */
+    private SparseArray<LinkedList<Entry>> mEntries = new SparseArray<LinkedList<Entry>>();
 
-    void add(int connId, int srvcType,
+    /** Discovery start time per connection, for timing metrics */
+    private SparseArray<Long> mStartTimes = new SparseArray<Long>();
+
+    /** Connections whose client was already answered from the cache */
+    private SparseBooleanArray mSilent = new SparseBooleanArray();
+
+    synchronized void add(int connId, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb) {
         Entry entry = new Entry();
         entry.connId = connId;
@@ -48,10 +57,10 @@ import java.util.List;
         entry.srvcUuidLsb = srvcUuidLsb;
         entry.srvcUuidMsb = srvcUuidMsb;
         entry.charUuidLsb = 0;
-        mEntries.add(entry);
+        getEntries(connId).add(entry);
     }
 
-    void add(int connId, int srvcType,
+    synchronized void add(int connId, int srvcType,
         int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
         int charInstId, long charUuidLsb, long charUuidMsb)
     {
@@ -64,29 +73,73 @@ import java.util.List;
         entry.charInstId = charInstId;
         entry.charUuidLsb = charUuidLsb;
         entry.charUuidMsb = charUuidMsb;
-        mEntries.add(entry);
+        getEntries(connId).add(entry);
+    }
+
+    /**
+     * Marks the start of a discovery on the given connection, dropping
+     * anything left over from a previous discovery. The results of a
+     * silent discovery are not reported to the client.
+     */
+    synchronized void start(int connId, boolean silent) {
+        mEntries.remove(connId);
+        mStartTimes.put(connId, SystemClock.elapsedRealtime());
+        if (silent) {
+            mSilent.put(connId, true);
+        } else {
+            mSilent.delete(connId);
+        }
+    }
+
+    synchronized boolean isSilent(int connId) {
+        return mSilent.get(connId);
     }
 
-    Entry pop() {
-        Entry entry = mEntries.get(0);
-        mEntries.remove(0);
+    /**
+     * Marks the end of a discovery on the given connection.
+     * Returns the discovery duration in milliseconds, or -1 if unknown.
+     */
+    synchronized long finish(int connId) {
+        mEntries.remove(connId);
+        mSilent.delete(connId);
+        Long startTime = mStartTimes.get(connId);
+        if (startTime == null) return -1;
+
+        mStartTimes.remove(connId);
+        return SystemClock.elapsedRealtime() - startTime;
+    }
+
+    synchronized Entry pop(int connId) {
+        LinkedList<Entry> entries = mEntries.get(connId);
+        if (entries == null) return null;
+
+        Entry entry = entries.poll();
+        if (entries.isEmpty()) mEntries.remove(connId);
         return entry;
     }
 
-    void removeConnId(int connId) {
-        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext();) {
-            Entry entry = it.next();
-            if (entry.connId == connId) {
-                it.remove();
-            }
-        }
+    synchronized void removeConnId(int connId) {
+        mEntries.remove(connId);
+        mStartTimes.remove(connId);
+        mSilent.delete(connId);
     }
 
-    boolean isEmpty() {
-        return mEntries.isEmpty();
+    synchronized boolean isEmpty(int connId) {
+        return mEntries.get(connId) == null;
     }
 
-    void clear() {
+    synchronized void clear() {
         mEntries.clear();
+        mStartTimes.clear();
+        mSilent.clear();
+    }
+
+    private LinkedList<Entry> getEntries(int connId) {
+        LinkedList<Entry> entries = mEntries.get(connId);
+        if (entries == null) {
+            entries = new LinkedList<Entry>();
+            mEntries.put(connId, entries);
+        }
+        return entries;
     }
 }
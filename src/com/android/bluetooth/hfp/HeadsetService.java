@@ -90,6 +90,11 @@ public class HeadsetService extends ProfileService {
         return true;
     }
 
+    @Override
+    protected boolean isIdle() {
+        return getDevicesMatchingConnectionStates(ACTIVE_CONNECTION_STATES).isEmpty();
+    }
+
     private final BroadcastReceiver mHeadsetReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -281,14 +286,14 @@ public class HeadsetService extends ProfileService {
 
     //API methods
     public static synchronized HeadsetService getHeadsetService(){
-        if (sHeadsetService != null && sHeadsetService.isAvailable()) {
+        if (sHeadsetService != null && sHeadsetService.isAvailableNoWait()) {
             if (DBG) Log.d(TAG, "getHeadsetService(): returning " + sHeadsetService);
             return sHeadsetService;
         }
         if (DBG)  {
             if (sHeadsetService == null) {
                 Log.d(TAG, "getHeadsetService(): service is NULL");
-            } else if (!(sHeadsetService.isAvailable())) {
+            } else if (!(sHeadsetService.isAvailableNoWait())) {
                 Log.d(TAG,"getHeadsetService(): service is not available");
             }
         }
@@ -296,14 +301,14 @@ public class HeadsetService extends ProfileService {
     }
 
     private static synchronized void setHeadsetService(HeadsetService instance) {
-        if (instance != null && instance.isAvailable()) {
+        if (instance != null && instance.isAvailableNoWait()) {
             if (DBG) Log.d(TAG, "setHeadsetService(): set to: " + sHeadsetService);
             sHeadsetService = instance;
         } else {
             if (DBG)  {
                 if (sHeadsetService == null) {
                     Log.d(TAG, "setHeadsetService(): service not available");
-                } else if (!sHeadsetService.isAvailable()) {
+                } else if (!sHeadsetService.isAvailableNoWait()) {
                     Log.d(TAG,"setHeadsetService(): service is cleaning up");
                 }
             }
@@ -363,9 +368,7 @@ public class HeadsetService extends ProfileService {
     public boolean setPriority(BluetoothDevice device, int priority) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()),
-            priority);
+        setProfilePriority(Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()), priority);
         if (DBG) Log.d(TAG, "Saved priority " + device + " = " + priority);
         return true;
     }
@@ -373,10 +376,7 @@ public class HeadsetService extends ProfileService {
     public int getPriority(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
-        return priority;
+        return getProfilePriority(Settings.Global.getBluetoothHeadsetPriorityKey(device.getAddress()));
     }
 
     boolean startVoiceRecognition(BluetoothDevice device) {
@@ -1948,6 +1948,8 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     private BluetoothDevice getDevice(byte[] address) {
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (adapterService != null) return adapterService.getRemoteDevice(address);
         return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
     }
 
@@ -106,15 +106,20 @@ public class HidService extends ProfileService {
         return true;
     }
 
+    @Override
+    protected boolean isIdle() {
+        return getDevicesMatchingConnectionStates(ACTIVE_CONNECTION_STATES).isEmpty();
+    }
+
     public static synchronized HidService getHidService(){
-        if (sHidService != null && sHidService.isAvailable()) {
+        if (sHidService != null && sHidService.isAvailableNoWait()) {
             if (DBG) Log.d(TAG, "getHidService(): returning " + sHidService);
             return sHidService;
         }
         if (DBG)  {
             if (sHidService == null) {
                 Log.d(TAG, "getHidService(): service is NULL");
-            } else if (!(sHidService.isAvailable())) {
+            } else if (!(sHidService.isAvailableNoWait())) {
                 Log.d(TAG,"getHidService(): service is not available");
             }
         }
@@ -122,14 +127,14 @@ public class HidService extends ProfileService {
     }
 
     private static synchronized void setHidService(HidService instance) {
-        if (instance != null && instance.isAvailable()) {
+        if (instance != null && instance.isAvailableNoWait()) {
             if (DBG) Log.d(TAG, "setHidService(): set to: " + sHidService);
             sHidService = instance;
         } else {
             if (DBG)  {
                 if (sHidService == null) {
                     Log.d(TAG, "setHidService(): service not available");
-                } else if (!sHidService.isAvailable()) {
+                } else if (!sHidService.isAvailableNoWait()) {
                     Log.d(TAG,"setHidService(): service is cleaning up");
                 }
             }
@@ -427,9 +432,7 @@ public class HidService extends ProfileService {
     public boolean setPriority(BluetoothDevice device, int priority) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothInputDevicePriorityKey(device.getAddress()),
-            priority);
+        setProfilePriority(Settings.Global.getBluetoothInputDevicePriorityKey(device.getAddress()), priority);
         if (DBG) Log.d(TAG,"Saved priority " + device + " = " + priority);
         return true;
     }
@@ -437,10 +440,7 @@ public class HidService extends ProfileService {
     public  int getPriority(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothInputDevicePriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
-        return priority;
+        return getProfilePriority(Settings.Global.getBluetoothInputDevicePriorityKey(device.getAddress()));
     }
 
     /* The following APIs regarding test app for compliance */
@@ -0,0 +1,303 @@
+/*
+* Copyright (C) 2013 Samsung System LSI
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+/**
+ * Contact names and vCard details of message addresses. Listings and
+ * messages mostly involve the same few correspondents, so the contacts
+ * provider lookups are kept for the most recently used addresses, until
+ * the contacts change.
+ */
+class BluetoothMapContactCache {
+    private static final String TAG = "BluetoothMapContactCache";
+
+    private static final boolean D = false;
+
+    static final int MAX_ENTRIES = 128;
+
+    /**
+     * The contact details of an address used in a bMessage vCard. The name
+     * is null, and the phone number the address itself, if no contact
+     * matches the address.
+     */
+    static class VCard {
+        final String name;
+        final String[] phoneNumbers;
+        final String[] emailAddresses;
+
+        VCard(String name, String[] phoneNumbers, String[] emailAddresses) {
+            this.name = name;
+            this.phoneNumbers = phoneNumbers;
+            this.emailAddresses = emailAddresses;
+        }
+    }
+
+    private static class Entry {
+        boolean hasName = false;
+        String name;
+        VCard vCard;
+    }
+
+    private final ContentResolver mResolver;
+    private final Map<String, Entry> mEntries =
+        new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /* Lookups started before a contacts change must not be cached */
+    private int mGeneration = 0;
+
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mSavedQueries = 0;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    BluetoothMapContactCache(ContentResolver resolver) {
+        mResolver = resolver;
+        mResolver.registerContentObserver(Contacts.CONTENT_URI, true, mObserver);
+    }
+
+    void close() {
+        mResolver.unregisterContentObserver(mObserver);
+        if (D) Log.d(TAG, "close: " + this);
+        synchronized (this) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Returns the display name of the contact with the given phone number
+     * or email address, or null if there is none.
+     */
+    String getName(String address) {
+        String key = getKey(address);
+        int generation;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.hasName) {
+                ++mHits;
+                ++mSavedQueries;
+                return entry.name;
+            }
+            ++mMisses;
+            generation = mGeneration;
+        }
+
+        String name = queryName(address);
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                Entry entry = getOrCreateEntry(key);
+                entry.hasName = true;
+                entry.name = name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Returns the contact details of the given phone number or email
+     * address for a vCard.
+     */
+    VCard getVCard(String address) {
+        String key = getKey(address);
+        int generation;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.vCard != null) {
+                ++mHits;
+                /* Phone numbers and email addresses are only read for contacts */
+                if (entry.vCard.name == null) {
+                    ++mSavedQueries;
+                    /* Other spellings of the address share the entry */
+                    return new VCard(null, new String[] {address}, null);
+                }
+                mSavedQueries += 3;
+                return entry.vCard;
+            }
+            ++mMisses;
+            generation = mGeneration;
+        }
+
+        VCard vCard = queryVCard(address);
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                getOrCreateEntry(key).vCard = vCard;
+            }
+        }
+        return vCard;
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the number of contacts provider queries the cache saved.
+     */
+    synchronized int getSavedQueryCount() {
+        return mSavedQueries;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int lookups = mHits + mMisses;
+        return "hits=" + mHits + " misses=" + mMisses
+            + " hitRate=" + (lookups > 0 ? (mHits * 100 / lookups) : 0) + "%"
+            + " savedQueries=" + mSavedQueries + " entries=" + mEntries.size();
+    }
+
+    synchronized void invalidate() {
+        if (D) Log.d(TAG, "Contacts changed, " + mEntries.size() + " entries dropped");
+        ++mGeneration;
+        mEntries.clear();
+    }
+
+    private Entry getOrCreateEntry(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    static String getKey(String address) {
+        if (address == null) return "";
+        String trimmed = address.trim();
+        if (trimmed.indexOf('@') >= 0) {
+            return trimmed.toLowerCase(Locale.US);
+        }
+        /* Alphanumeric senders such as "VK-HDFCBK" are not phone numbers */
+        String number = PhoneNumberUtils.stripSeparators(trimmed);
+        if (PhoneNumberUtils.isGlobalPhoneNumber(number)) {
+            return number;
+        }
+        return trimmed;
+    }
+
+    private String queryName(String phone) {
+        String name = null;
+
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+            Uri.encode(phone));
+
+        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
+        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
+        String orderBy = Contacts.DISPLAY_NAME + " ASC";
+
+        Cursor c = mResolver.query(uri, projection, selection, null, orderBy);
+
+        if (c != null) {
+            if (c.moveToFirst()) {
+                name = c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME));
+            }
+            c.close();
+        }
+        return name;
+    }
+
+    private VCard queryVCard(String phone) {
+        String contactId = null, contactName = null;
+        String[] phoneNumbers = null;
+        String[] emailAddresses = null;
+        Cursor p;
+
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                Uri.encode(phone));
+
+        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
+        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
+        String orderBy = Contacts._ID + " ASC";
+
+        // Get the contact _ID and name
+        p = mResolver.query(uri, projection, selection, null, orderBy);
+        if (p != null) {
+            if (p.moveToFirst()) {
+                contactId = p.getString(p.getColumnIndex(Contacts._ID));
+                contactName = p.getString(p.getColumnIndex(Contacts.DISPLAY_NAME));
+            }
+            p.close();
+        }
+
+        // Bail out if we are unable to find a contact, based on the phone number
+        if(contactId == null) {
+            phoneNumbers = new String[1];
+            phoneNumbers[0] = phone;
+        }
+        else {
+            // Fetch all contact phone numbers
+            p = mResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, null,
+                ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
+                new String[]{contactId},
+                null);
+            if(p != null) {
+                int i = 0;
+                phoneNumbers = new String[p.getCount()];
+                while (p.moveToNext()) {
+                    String number = p.getString(
+                        p.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER));
+                    phoneNumbers[i++] = number;
+                }
+                p.close();
+            }
+
+            // Fetch contact e-mail addresses
+            p = mResolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI, null,
+                    ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
+                    new String[]{contactId},
+                    null);
+            if(p != null) {
+                int i = 0;
+                emailAddresses = new String[p.getCount()];
+                while (p.moveToNext()) {
+                    String emailAddress = p.getString(
+                        p.getColumnIndex(ContactsContract.CommonDataKinds.Email.ADDRESS));
+                    emailAddresses[i++] = emailAddress;
+                }
+                p.close();
+            }
+        }
+        return new VCard(contactName, phoneNumbers, emailAddresses);
+    }
+}
@@ -19,6 +19,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.http.util.ByteArrayBuffer;
 
@@ -29,8 +31,6 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
 import android.telephony.TelephonyManager;
@@ -74,6 +74,7 @@ public class BluetoothMapContent {
 
     private Context mContext;
     private ContentResolver mResolver;
+    private BluetoothMapContactCache mContactCache;
 
     static final String[] SMS_PROJECTION = new String[] {
         BaseColumns._ID,
@@ -103,6 +104,11 @@ public class BluetoothMapContent {
         Mms.STATUS,
     };
 
+    /* Counting only needs the rows, not their content */
+    static final String[] COUNT_PROJECTION = new String[] {
+        BaseColumns._ID,
+    };
+
     private class FilterInfo {
         public static final int TYPE_SMS = 0;
         public static final int TYPE_MMS = 1;
@@ -119,6 +125,15 @@ public class BluetoothMapContent {
         if (mResolver == null) {
             Log.d(TAG, "getContentResolver failed");
         }
+        mContactCache = new BluetoothMapContactCache(mResolver);
+    }
+
+    /**
+     * Releases the contact cache. Call when the session ends.
+     */
+    public void close() {
+        Log.d(TAG, "contact cache: " + mContactCache);
+        mContactCache.close();
     }
 
     private void addSmsEntry() {
@@ -677,24 +692,7 @@ public class BluetoothMapContent {
     }
 
     private String getContactNameFromPhone(String phone) {
-        String name = null;
-
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-            Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts.DISPLAY_NAME + " ASC";
-
-        Cursor c = mResolver.query(uri, projection, selection, null, orderBy);
-
-        if (c != null && c.getCount() >= 1) {
-            c.moveToFirst();
-            name = c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME));
-        }
-
-        c.close();
-        return name;
+        return mContactCache.getName(phone);
     }
 
     static public String getAddressMms(ContentResolver r, long id, int type) {
@@ -1144,60 +1142,130 @@ public class BluetoothMapContent {
         }
     }
 
+    /**
+     * Rows of one message table matching a listing request, in date order.
+     * Only the filters the provider cannot apply are checked here.
+     */
+    private class ListingCursor {
+        final Cursor mCursor;
+        final FilterInfo mFilterInfo;
+        final BluetoothMapAppParams mAppParams;
+        long mDate;
+
+        ListingCursor(Cursor c, FilterInfo fi, BluetoothMapAppParams ap) {
+            mCursor = c;
+            mFilterInfo = fi;
+            mAppParams = ap;
+        }
+
+        /**
+         * Moves to the next matching row. Returns false at the end.
+         */
+        boolean moveToNext() {
+            while (mCursor.moveToNext()) {
+                if (matchAddresses(mCursor, mFilterInfo, mAppParams)) {
+                    if (mFilterInfo.msgType == FilterInfo.TYPE_SMS) {
+                        mDate = mCursor.getLong(mCursor.getColumnIndex(Sms.DATE));
+                    } else {
+                        mDate = mCursor.getLong(mCursor.getColumnIndex(Mms.DATE)) * 1000L;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        BluetoothMapMessageListingElement element() {
+            if (mFilterInfo.msgType == FilterInfo.TYPE_SMS) {
+                printSms(mCursor);
+            } else {
+                printMms(mCursor);
+            }
+            return BluetoothMapContent.this.element(mCursor, mFilterInfo, mAppParams);
+        }
+    }
+
+    private boolean hasAddressFilter(BluetoothMapAppParams ap) {
+        String orig = ap.getFilterOriginator();
+        String recip = ap.getFilterRecipient();
+        return (orig != null && orig.length() > 0) || (recip != null && recip.length() > 0);
+    }
+
+    private FilterInfo copyFilterInfo(FilterInfo fi, int msgType) {
+        FilterInfo copy = new FilterInfo();
+        copy.msgType = msgType;
+        copy.phoneType = fi.phoneType;
+        copy.phoneNum = fi.phoneNum;
+        copy.phoneAlphaTag = fi.phoneAlphaTag;
+        return copy;
+    }
+
+    /**
+     * Builds the listing of the newest messages of a folder. The SMS and MMS
+     * tables are read in date order and merged, and reading stops once the
+     * requested segment is complete, so only its elements are built.
+     */
     public BluetoothMapMessageListing msgListing(String folder, BluetoothMapAppParams ap) {
         Log.d(TAG, "msgListing: folder = " + folder);
         BluetoothMapMessageListing bmList = new BluetoothMapMessageListing();
-        BluetoothMapMessageListingElement e = null;
+        int maxListCount = ap.getMaxListCount();
+        int startOffset = ap.getStartOffset();
 
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
-        if (smsSelected(fi, ap)) {
-            fi.msgType = FilterInfo.TYPE_SMS;
-
-            String where = setWhereFilter(folder, fi, ap);
-
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, "date DESC");
+        /* No table contributes more rows than the segment ends at, unless */
+        /* rows are dropped by the address filters */
+        String sortOrder = "date DESC";
+        if (!hasAddressFilter(ap)) {
+            sortOrder += " LIMIT " + (startOffset + maxListCount);
+        }
 
-            if (c != null) {
-                while (c.moveToNext()) {
-                    if (matchAddresses(c, fi, ap)) {
-                        printSms(c);
-                        e = element(c, fi, ap);
-                        bmList.add(e);
-                    }
-                }
-                c.close();
+        List<ListingCursor> sources = new ArrayList<ListingCursor>(2);
+        try {
+            if (smsSelected(fi, ap)) {
+                FilterInfo fiSms = copyFilterInfo(fi, FilterInfo.TYPE_SMS);
+                String where = setWhereFilter(folder, fiSms, ap);
+                Cursor c = mResolver.query(Sms.CONTENT_URI,
+                    SMS_PROJECTION, where, null, sortOrder);
+                if (c != null) sources.add(new ListingCursor(c, fiSms, ap));
             }
-        }
 
-        if (mmsSelected(fi, ap)) {
-            fi.msgType = FilterInfo.TYPE_MMS;
+            if (mmsSelected(fi, ap)) {
+                FilterInfo fiMms = copyFilterInfo(fi, FilterInfo.TYPE_MMS);
+                String where = setWhereFilter(folder, fiMms, ap);
+                Cursor c = mResolver.query(Mms.CONTENT_URI,
+                    MMS_PROJECTION, where, null, sortOrder);
+                if (c != null) sources.add(new ListingCursor(c, fiMms, ap));
+            }
 
-            String where = setWhereFilter(folder, fi, ap);
+            List<ListingCursor> pending = new ArrayList<ListingCursor>(sources.size());
+            for (ListingCursor source : sources) {
+                if (source.moveToNext()) pending.add(source);
+            }
 
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
+            int skipped = 0;
+            while (bmList.getCount() < maxListCount && !pending.isEmpty()) {
+                /* Newest row first; on equal dates SMS before MMS */
+                ListingCursor next = pending.get(0);
+                for (ListingCursor source : pending) {
+                    if (source.mDate > next.mDate) next = source;
+                }
 
-            if (c != null) {
-                int cnt = 0;
-                while (c.moveToNext()) {
-                    if (matchAddresses(c, fi, ap)) {
-                        printMms(c);
-                        e = element(c, fi, ap);
-                        bmList.add(e);
-                    }
+                if (skipped < startOffset) {
+                    ++skipped;
+                } else {
+                    bmList.add(next.element());
                 }
-                c.close();
+                if (!next.moveToNext()) pending.remove(next);
+            }
+        } finally {
+            for (ListingCursor source : sources) {
+                source.mCursor.close();
             }
         }
 
-        /* Enable this if post sorting and segmenting needed */
-        bmList.sort();
-        bmList.segment(ap.getMaxListCount(), ap.getStartOffset());
-
         return bmList;
     }
 
@@ -1213,7 +1281,7 @@ public class BluetoothMapContent {
             fi.msgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilter(folder, fi, ap);
             Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, "date DESC");
+                COUNT_PROJECTION, where, null, null);
 
             if (c != null) {
                 cnt = c.getCount();
@@ -1225,7 +1293,7 @@ public class BluetoothMapContent {
             fi.msgType = FilterInfo.TYPE_MMS;
             String where = setWhereFilter(folder, fi, ap);
             Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
+                COUNT_PROJECTION, where, null, null);
 
             if (c != null) {
                 cnt += c.getCount();
@@ -1256,7 +1324,7 @@ public class BluetoothMapContent {
             where += " AND read=0 ";
             where += setWhereFilterPeriod(ap, fi);
             Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, "date DESC");
+                COUNT_PROJECTION, where, null, null);
 
             if (c != null) {
                 cnt = c.getCount();
@@ -1270,7 +1338,7 @@ public class BluetoothMapContent {
             where += " AND read=0 ";
             where += setWhereFilterPeriod(ap, fi);
             Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
+                COUNT_PROJECTION, where, null, null);
 
             if (c != null) {
                 cnt += c.getCount();
@@ -1323,69 +1391,13 @@ public class BluetoothMapContent {
     }
 
     private void setVCardFromPhoneNumber(BluetoothMapbMessage message, String phone, boolean incoming) {
-        String contactId = null, contactName = null;
-        String[] phoneNumbers = null;
-        String[] emailAddresses = null;
-        Cursor p;
-
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(phone));
+        BluetoothMapContactCache.VCard vCard = mContactCache.getVCard(phone);
+        String contactName = vCard.name;
 
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts._ID + " ASC";
-
-        // Get the contact _ID and name
-        p = mResolver.query(uri, projection, selection, null, orderBy);
-        if (p != null && p.getCount() >= 1) {
-            p.moveToFirst();
-            contactId = p.getString(p.getColumnIndex(Contacts._ID));
-            contactName = p.getString(p.getColumnIndex(Contacts.DISPLAY_NAME));
-        }
-        p.close();
-
-        // Bail out if we are unable to find a contact, based on the phone number
-        if(contactId == null) {
-            phoneNumbers = new String[1];
-            phoneNumbers[0] = phone;
-        }
-        else {
-            // Fetch all contact phone numbers
-            p = mResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, null,
-                ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
-                new String[]{contactId},
-                null);
-            if(p != null) {
-                int i = 0;
-                phoneNumbers = new String[p.getCount()];
-                while (p != null && p.moveToNext()) {
-                    String number = p.getString(
-                        p.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER));
-                    phoneNumbers[i++] = number;
-                }
-                p.close();
-            }
-
-            // Fetch contact e-mail addresses
-            p = mResolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI, null,
-                    ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
-                    new String[]{contactId},
-                    null);
-            if(p != null) {
-                int i = 0;
-                emailAddresses = new String[p.getCount()];
-                while (p != null && p.moveToNext()) {
-                    String emailAddress = p.getString(
-                        p.getColumnIndex(ContactsContract.CommonDataKinds.Email.ADDRESS));
-                    emailAddresses[i++] = emailAddress;
-                }
-                p.close();
-            }
-        }
         if(incoming == true)
-            message.addOriginator(contactName, contactName, phoneNumbers, emailAddresses); // Use version 3.0 as we only have a formatted name
+            message.addOriginator(contactName, contactName, vCard.phoneNumbers, vCard.emailAddresses); // Use version 3.0 as we only have a formatted name
         else
-            message.addRecipient(contactName, contactName, phoneNumbers, emailAddresses); // Use version 3.0 as we only have a formatted name
+            message.addRecipient(contactName, contactName, vCard.phoneNumbers, vCard.emailAddresses); // Use version 3.0 as we only have a formatted name
     }
 
     public static final int MAP_MESSAGE_CHARSET_NATIVE = 0;
@@ -43,6 +43,7 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -128,7 +129,14 @@ public class BluetoothMapContentObserver {
         return smsType;
     }
 
-    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+    /* Changes are collected for CHANGE_DELAY ms, but handled at the latest
+     * MAX_CHANGE_DELAY ms after the first one */
+    private static final int CHANGE_DELAY = 200;
+    private static final int MAX_CHANGE_DELAY = 1000;
+
+    private final Handler mHandler = new Handler();
+
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
         @Override
         public void onChange(boolean selfChange) {
             onChange(selfChange, null);
@@ -137,12 +145,33 @@ public class BluetoothMapContentObserver {
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (V) Log.d(TAG, "onChange on thread: " + Thread.currentThread().getId()
-                + " Uri: " + uri.toString() + " selfchange: " + selfChange);
+                + " Uri: " + uri + " selfchange: " + selfChange);
+
+            if (!mTracking) return;
+            addChange(uri);
+        }
+    };
 
-//            handleMsgListChanges();
+    private final Runnable mHandleChanges = new Runnable() {
+        public void run() {
+            handleMsgListChanges();
         }
     };
 
+    /* Set while the message lists are kept up to date for an MNS client */
+    private volatile boolean mTracking = false;
+
+    /* Rows named by change notifications, re-read one by one */
+    private final Set<Long> mChangedSms = new HashSet<Long>();
+    private final Set<Long> mChangedMms = new HashSet<Long>();
+    /* Set by notifications that do not name a row */
+    private boolean mCheckAll = false;
+    private long mFirstChangeTime = -1;
+
+    /* Highest _id seen; rows above it are new */
+    private long mMaxIdSms = -1;
+    private long mMaxIdMms = -1;
+
     private static final String folderSms[] = {
         "",
         "inbox",
@@ -226,21 +255,9 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private class Msg {
-        long id;
-        int type;
+    private final BluetoothMapMsgList mMsgListSms = new BluetoothMapMsgList();
 
-        public Msg(long id, int type) {
-            this.id = id;
-            this.type = type;
-        }
-    }
-
-    private Map<Long, Msg> mMsgListSms =
-        Collections.synchronizedMap(new HashMap<Long, Msg>());
-
-    private Map<Long, Msg> mMsgListMms =
-        Collections.synchronizedMap(new HashMap<Long, Msg>());
+    private final BluetoothMapMsgList mMsgListMms = new BluetoothMapMsgList();
 
     public void registerObserver(BluetoothMnsObexClient mns, int masId) {
         if (V) Log.d(TAG, "registerObserver");
@@ -248,6 +265,8 @@ public class BluetoothMapContentObserver {
         mMasId = masId;
         mMnsClient = mns;
         mResolver.registerContentObserver(MmsSms.CONTENT_URI, false, mObserver);
+        /* Sms notifications name the changed row, which saves a full check */
+        mResolver.registerContentObserver(Sms.CONTENT_URI, true, mObserver);
         initMsgList();
     }
 
@@ -262,6 +281,8 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
         mMnsClient = null;
+        mTracking = false;
+        mHandler.removeCallbacks(mHandleChanges);
     }
 
     private void sendEvent(Event evt) {
@@ -280,166 +301,427 @@ public class BluetoothMapContentObserver {
         }
     }
 
+    /* Mms rows that are not listed: notifications of messages that are
+     * not downloaded yet. They are re-read until they are. */
+    private static final String MMS_NOT_RETRIEVED = "(" + Mms.MESSAGE_BOX + "="
+        + Mms.MESSAGE_BOX_INBOX + " AND " + Mms.MESSAGE_TYPE + "!="
+        + MESSAGE_TYPE_RETRIEVE_CONF + ")";
+
+    /* Rows that may still move to another folder */
+    private static final String SMS_UNSETTLED = Sms.TYPE + " NOT IN ("
+        + Sms.MESSAGE_TYPE_INBOX + "," + Sms.MESSAGE_TYPE_SENT + ")";
+    private static final String MMS_UNSETTLED = Mms.MESSAGE_BOX + " NOT IN ("
+        + Mms.MESSAGE_BOX_INBOX + "," + Mms.MESSAGE_BOX_SENT + ") OR "
+        + MMS_NOT_RETRIEVED;
+
+    private static final String[] SMS_CHANGE_PROJECTION = new String[] {
+        BaseColumns._ID,
+        Sms.TYPE,
+    };
+
+    private static final String[] MMS_CHANGE_PROJECTION = new String[] {
+        BaseColumns._ID,
+        Mms.MESSAGE_BOX,
+        Mms.MESSAGE_TYPE,
+    };
+
+    private static final String ID_ORDER = BaseColumns._ID + " ASC";
+
     private void initMsgList() {
         if (V) Log.d(TAG, "initMsgList");
 
-        mMsgListSms.clear();
-        mMsgListMms.clear();
+        mHandler.removeCallbacks(mHandleChanges);
+        mChangedSms.clear();
+        mChangedMms.clear();
+        mCheckAll = false;
+        mFirstChangeTime = -1;
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        long maxIdSms = -1;
 
         Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION, null, null, null);
+            SMS_CHANGE_PROJECTION, null, null, ID_ORDER);
 
+        BluetoothMapMsgList msgListSms = new BluetoothMapMsgList(c != null ? c.getCount() : 0);
         if (c != null && c.moveToFirst()) {
             do {
-                long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+                long id = c.getLong(0);
+                int type = c.getInt(1);
 
-                Msg msg = new Msg(id, type);
-                msgListSms.put(id, msg);
+                msgListSms.put(id, type);
+                maxIdSms = Math.max(maxIdSms, id);
             } while (c.moveToNext());
+        }
+        if (c != null) {
             c.close();
         }
 
-        mMsgListSms = msgListSms;
+        mMsgListSms.replace(msgListSms);
+        mMaxIdSms = maxIdSms;
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        long maxIdMms = -1;
 
         c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION, null, null, null);
+            MMS_CHANGE_PROJECTION, null, null, ID_ORDER);
 
+        BluetoothMapMsgList msgListMms = new BluetoothMapMsgList(c != null ? c.getCount() : 0);
         if (c != null && c.moveToFirst()) {
             do {
-                long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
+                long id = c.getLong(0);
+                int type = c.getInt(1);
+                int mtype = c.getInt(2);
 
-                Msg msg = new Msg(id, type);
-                msgListMms.put(id, msg);
+                maxIdMms = Math.max(maxIdMms, id);
+                if (type == Mms.MESSAGE_BOX_INBOX && mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
+                    continue;
+                }
+                msgListMms.put(id, type);
             } while (c.moveToNext());
+        }
+        if (c != null) {
             c.close();
         }
 
-        mMsgListMms = msgListMms;
+        mMsgListMms.replace(msgListMms);
+        mMaxIdMms = maxIdMms;
+        mTracking = true;
     }
 
-    private void handleMsgListChangesSms() {
-        if (V) Log.d(TAG, "handleMsgListChangesSms");
+    /**
+     * Records a change notification and schedules its handling. Bursts of
+     * notifications are handled together.
+     */
+    private void addChange(Uri uri) {
+        long id = -1;
+        String authority = null;
+        if (uri != null) {
+            authority = uri.getAuthority();
+            try {
+                String segment = uri.getLastPathSegment();
+                if (segment != null) id = Long.parseLong(segment);
+            } catch (NumberFormatException e) {
+                /* Not a message row */
+            }
+        }
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        if (id >= 0 && "sms".equals(authority)) {
+            mChangedSms.add(id);
+        } else if (id >= 0 && "mms".equals(authority)) {
+            mChangedMms.add(id);
+        } else {
+            mCheckAll = true;
+        }
 
-        Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION, null, null, null);
+        long now = SystemClock.elapsedRealtime();
+        if (mFirstChangeTime < 0) mFirstChangeTime = now;
+        long delay = Math.min(CHANGE_DELAY, mFirstChangeTime + MAX_CHANGE_DELAY - now);
+        mHandler.removeCallbacks(mHandleChanges);
+        mHandler.postDelayed(mHandleChanges, Math.max(delay, 0));
+    }
+
+    /**
+     * Builds the selection of the rows to re-read: rows above the _id
+     * watermark, rows named by notifications and, if a notification did not
+     * name a row, rows that may still move to another folder.
+     */
+    private static String getChangeSelection(long maxId, Set<Long> ids, boolean checkAll,
+            String unsettled) {
+        StringBuilder where = new StringBuilder();
+        where.append(BaseColumns._ID).append(" > ").append(maxId);
+        if (!ids.isEmpty()) {
+            where.append(" OR ").append(BaseColumns._ID).append(" IN (");
+            boolean first = true;
+            for (Long id : ids) {
+                if (!first) where.append(',');
+                where.append(id);
+                first = false;
+            }
+            where.append(')');
+        }
+        if (checkAll) {
+            where.append(" OR ").append(unsettled);
+        }
+        return where.toString();
+    }
+
+    private void handleSmsChange(long id, int type) {
+        int oldType = mMsgListSms.get(id);
+        if (type != oldType) mMsgListSms.put(id, type);
+        sendSmsChangeEvent(id, type, oldType);
+    }
+
+    /**
+     * Notifies a new or moved message; oldType is NOT_FOUND for a new one.
+     */
+    private void sendSmsChangeEvent(long id, int type, int oldType) {
+        if (oldType == BluetoothMapMsgList.NOT_FOUND) {
+            /* New message */
+            if (folderSms[type].equals("inbox")) {
+                Event evt = new Event("NewMessage", id, folderSms[type],
+                    null, mSmsType);
+                sendEvent(evt);
+            }
+        } else if (type != oldType) {
+            /* Existing message */
+            Log.d(TAG, "new type: " + type + " old type: " + oldType);
+            Event evt = new Event("MessageShift", id, folderSms[type],
+                folderSms[oldType], mSmsType);
+            sendEvent(evt);
+        }
+    }
+
+    private void handleSmsDeleted(long id) {
+        int type = mMsgListSms.remove(id);
+        if (type != BluetoothMapMsgList.NOT_FOUND) {
+            sendSmsDeletedEvent(id, type);
+        }
+    }
+
+    private void sendSmsDeletedEvent(long id, int type) {
+        Event evt = new Event("MessageDeleted", id, "deleted",
+            folderSms[type], mSmsType);
+        sendEvent(evt);
+    }
+
+    private void handleMsgListChangesSms(Set<Long> ids, boolean checkAll) {
+        if (V) Log.d(TAG, "handleMsgListChangesSms: " + ids.size() + " rows, checkAll "
+            + checkAll);
+
+        Cursor c = mResolver.query(Sms.CONTENT_URI, SMS_CHANGE_PROJECTION,
+            getChangeSelection(mMaxIdSms, ids, checkAll, SMS_UNSETTLED), null, null);
 
         synchronized(mMsgListSms) {
             if (c != null && c.moveToFirst()) {
                 do {
-                    long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-
-                    Msg msg = mMsgListSms.remove(id);
-
-                    if (msg == null) {
-                        /* New message */
-                        msg = new Msg(id, type);
-                        msgListSms.put(id, msg);
+                    long id = c.getLong(0);
+                    int type = c.getInt(1);
 
-                        if (folderSms[type].equals("inbox")) {
-                            Event evt = new Event("NewMessage", id, folderSms[type],
-                                null, mSmsType);
-                            sendEvent(evt);
-                        }
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt = new Event("MessageShift", id, folderSms[type],
-                                folderSms[msg.type], mSmsType);
-                            sendEvent(evt);
-                            msg.type = type;
-                        }
-                        msgListSms.put(id, msg);
-                    }
+                    ids.remove(id);
+                    mMaxIdSms = Math.max(mMaxIdSms, id);
+                    handleSmsChange(id, type);
                 } while (c.moveToNext());
+            }
+            if (c != null) {
                 c.close();
             }
 
-            for (Msg msg : mMsgListSms.values()) {
-                Event evt = new Event("MessageDeleted", msg.id, "deleted",
-                    folderSms[msg.type], mSmsType);
+            /* Named rows that are gone */
+            for (Long id : ids) {
+                handleSmsDeleted(id);
+            }
+
+            if (checkAll && getCount(Sms.CONTENT_URI, null) != mMsgListSms.size()) {
+                /* Rows were deleted without being named, or replaced */
+                handleMsgListRescanSms();
+            }
+        }
+    }
+
+    /**
+     * Compares the whole table against the message list. Only used when
+     * the number of rows shows a change that was not otherwise found.
+     * Both are sorted by _id, so they are compared in a single pass.
+     */
+    private void handleMsgListRescanSms() {
+        if (V) Log.d(TAG, "handleMsgListRescanSms");
+
+        Cursor c = mResolver.query(Sms.CONTENT_URI,
+            SMS_CHANGE_PROJECTION, null, null, ID_ORDER);
+        if (c == null) return;
+
+        BluetoothMapMsgList msgListSms = new BluetoothMapMsgList(c.getCount());
+        int size = mMsgListSms.size();
+        int i = 0;
+
+        if (c.moveToFirst()) {
+            do {
+                long id = c.getLong(0);
+                int type = c.getInt(1);
+
+                /* Listed messages before this row are gone */
+                for (; i < size && mMsgListSms.idAt(i) < id; i++) {
+                    sendSmsDeletedEvent(mMsgListSms.idAt(i), mMsgListSms.typeAt(i));
+                }
+                int oldType = BluetoothMapMsgList.NOT_FOUND;
+                if (i < size && mMsgListSms.idAt(i) == id) {
+                    oldType = mMsgListSms.typeAt(i++);
+                }
+
+                sendSmsChangeEvent(id, type, oldType);
+                msgListSms.put(id, type);
+                mMaxIdSms = Math.max(mMaxIdSms, id);
+            } while (c.moveToNext());
+        }
+        c.close();
+
+        for (; i < size; i++) {
+            sendSmsDeletedEvent(mMsgListSms.idAt(i), mMsgListSms.typeAt(i));
+        }
+
+        mMsgListSms.replace(msgListSms);
+    }
+
+    private void handleMmsChange(long id, int type, int mtype) {
+        int oldType = mMsgListMms.get(id);
+        if (!isMmsListed(type, mtype, oldType)) return;
+        if (type != oldType) mMsgListMms.put(id, type);
+        sendMmsChangeEvent(id, type, oldType);
+    }
+
+    /**
+     * New messages are only listed once retrieved, not on the notification.
+     */
+    private boolean isMmsListed(int type, int mtype, int oldType) {
+        return oldType != BluetoothMapMsgList.NOT_FOUND
+            || !folderMms[type].equals("inbox")
+            || mtype == MESSAGE_TYPE_RETRIEVE_CONF;
+    }
+
+    /**
+     * Notifies a new or moved message; oldType is NOT_FOUND for a new one.
+     */
+    private void sendMmsChangeEvent(long id, int type, int oldType) {
+        if (oldType == BluetoothMapMsgList.NOT_FOUND) {
+            /* New message */
+            if (folderMms[type].equals("inbox")) {
+                Event evt = new Event("NewMessage", id, folderMms[type],
+                    null, TYPE.MMS);
+                sendEvent(evt);
+            }
+        } else if (type != oldType) {
+            /* Existing message */
+            Log.d(TAG, "new type: " + type + " old type: " + oldType);
+            Event evt = new Event("MessageShift", id, folderMms[type],
+                folderMms[oldType], TYPE.MMS);
+            sendEvent(evt);
+
+            if (folderMms[type].equals("sent")) {
+                evt = new Event("SendingSuccess", id,
+                    folderSms[type], null, TYPE.MMS);
                 sendEvent(evt);
             }
+        }
+    }
 
-            mMsgListSms = msgListSms;
+    private void handleMmsDeleted(long id) {
+        int type = mMsgListMms.remove(id);
+        if (type != BluetoothMapMsgList.NOT_FOUND) {
+            sendMmsDeletedEvent(id, type);
         }
     }
 
-    private void handleMsgListChangesMms() {
-        if (V) Log.d(TAG, "handleMsgListChangesMms");
+    private void sendMmsDeletedEvent(long id, int type) {
+        Event evt = new Event("MessageDeleted", id, "deleted",
+            folderMms[type], TYPE.MMS);
+        sendEvent(evt);
+    }
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+    private void handleMsgListChangesMms(Set<Long> ids, boolean checkAll) {
+        if (V) Log.d(TAG, "handleMsgListChangesMms: " + ids.size() + " rows, checkAll "
+            + checkAll);
 
-        Cursor c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION, null, null, null);
+        Cursor c = mResolver.query(Mms.CONTENT_URI, MMS_CHANGE_PROJECTION,
+            getChangeSelection(mMaxIdMms, ids, checkAll, MMS_UNSETTLED), null, null);
 
         synchronized(mMsgListMms) {
             if (c != null && c.moveToFirst()) {
                 do {
-                    long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                    int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
+                    long id = c.getLong(0);
+                    int type = c.getInt(1);
+                    int mtype = c.getInt(2);
 
-                    Msg msg = mMsgListMms.remove(id);
-
-                    if (msg == null) {
-                        /* New message - only notify on retrieve conf */
-                        if (folderMms[type].equals("inbox") &&
-                            mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                        }
-
-                        msg = new Msg(id, type);
-                        msgListMms.put(id, msg);
-
-                        if (folderMms[type].equals("inbox")) {
-                            Event evt = new Event("NewMessage", id, folderMms[type],
-                                null, TYPE.MMS);
-                            sendEvent(evt);
-                        }
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt = new Event("MessageShift", id, folderMms[type],
-                                folderMms[msg.type], TYPE.MMS);
-                            sendEvent(evt);
-                            msg.type = type;
-
-                            if (folderMms[type].equals("sent")) {
-                                evt = new Event("SendingSuccess", id,
-                                    folderSms[type], null, TYPE.MMS);
-                                sendEvent(evt);
-                            }
-                        }
-                        msgListMms.put(id, msg);
-                    }
+                    ids.remove(id);
+                    mMaxIdMms = Math.max(mMaxIdMms, id);
+                    handleMmsChange(id, type, mtype);
                 } while (c.moveToNext());
+            }
+            if (c != null) {
                 c.close();
             }
 
-            for (Msg msg : mMsgListMms.values()) {
-                Event evt = new Event("MessageDeleted", msg.id, "deleted",
-                    folderMms[msg.type], TYPE.MMS);
-                sendEvent(evt);
+            /* Named rows that are gone */
+            for (Long id : ids) {
+                handleMmsDeleted(id);
+            }
+
+            if (checkAll && getCount(Mms.CONTENT_URI, "NOT " + MMS_NOT_RETRIEVED)
+                    != mMsgListMms.size()) {
+                /* Rows were deleted without being named, or replaced */
+                handleMsgListRescanMms();
             }
+        }
+    }
+
+    /**
+     * Compares the whole table against the message list. Only used when
+     * the number of rows shows a change that was not otherwise found.
+     * Both are sorted by _id, so they are compared in a single pass.
+     */
+    private void handleMsgListRescanMms() {
+        if (V) Log.d(TAG, "handleMsgListRescanMms");
+
+        Cursor c = mResolver.query(Mms.CONTENT_URI,
+            MMS_CHANGE_PROJECTION, null, null, ID_ORDER);
+        if (c == null) return;
 
-            mMsgListMms = msgListMms;
+        BluetoothMapMsgList msgListMms = new BluetoothMapMsgList(c.getCount());
+        int size = mMsgListMms.size();
+        int i = 0;
+
+        if (c.moveToFirst()) {
+            do {
+                long id = c.getLong(0);
+                int type = c.getInt(1);
+                int mtype = c.getInt(2);
+
+                mMaxIdMms = Math.max(mMaxIdMms, id);
+
+                /* Listed messages before this row are gone */
+                for (; i < size && mMsgListMms.idAt(i) < id; i++) {
+                    sendMmsDeletedEvent(mMsgListMms.idAt(i), mMsgListMms.typeAt(i));
+                }
+                int oldType = BluetoothMapMsgList.NOT_FOUND;
+                if (i < size && mMsgListMms.idAt(i) == id) {
+                    oldType = mMsgListMms.typeAt(i++);
+                }
+
+                if (!isMmsListed(type, mtype, oldType)) continue;
+                sendMmsChangeEvent(id, type, oldType);
+                msgListMms.put(id, type);
+            } while (c.moveToNext());
+        }
+        c.close();
+
+        for (; i < size; i++) {
+            sendMmsDeletedEvent(mMsgListMms.idAt(i), mMsgListMms.typeAt(i));
+        }
+
+        mMsgListMms.replace(msgListMms);
+    }
+
+    private int getCount(Uri uri, String selection) {
+        Cursor c = mResolver.query(uri, new String[] { BaseColumns._ID },
+            selection, null, null);
+        if (c == null) return -1;
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
         }
     }
 
     private void handleMsgListChanges() {
-        handleMsgListChangesSms();
-        handleMsgListChangesMms();
+        if (!mTracking) return;
+
+        Set<Long> changedSms = new HashSet<Long>(mChangedSms);
+        Set<Long> changedMms = new HashSet<Long>(mChangedMms);
+        boolean checkAll = mCheckAll;
+        mChangedSms.clear();
+        mChangedMms.clear();
+        mCheckAll = false;
+        mFirstChangeTime = -1;
+
+        handleMsgListChangesSms(changedSms, checkAll);
+        handleMsgListChangesMms(changedMms, checkAll);
     }
 
     private boolean deleteMessageMms(long handle) {
@@ -14,8 +14,9 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -73,19 +74,9 @@ public class BluetoothMapMessageListing {
      *             if UTF-8 encoding is unsupported on the platform.
      */
     public byte[] encode() throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
-        XmlSerializer xmlMsgElement = Xml.newSerializer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            xmlMsgElement.setOutput(sw);
-            xmlMsgElement.startDocument(null, null);
-            xmlMsgElement.startTag("", "MAP-msg-listing");
-            xmlMsgElement.attribute("", "version", "1.0");
-            // Do the XML encoding of list
-            for (BluetoothMapMessageListingElement element : list) {
-                element.encode(xmlMsgElement); // Append the list element
-            }
-            xmlMsgElement.endTag("", "MAP-msg-listing");
-            xmlMsgElement.endDocument();
+            encode(out);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e.toString());
         } catch (IllegalStateException e) {
@@ -93,7 +84,33 @@ public class BluetoothMapMessageListing {
         } catch (IOException e) {
             Log.w(TAG, e.toString());
         }
-        return sw.toString().getBytes("UTF-8");
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8
+     * formatted XML directly into a stream, e.g. the OBEX body stream,
+     * without holding the encoded listing in memory.
+     *
+     * @param out the stream to write to. It is flushed, but not closed.
+     * @throws IOException
+     *             if writing to the stream fails, e.g. on abort.
+     */
+    public void encode(OutputStream out) throws IOException {
+        XmlSerializer xmlMsgElement = Xml.newSerializer();
+        xmlMsgElement.setOutput(out, "UTF-8");
+        xmlMsgElement.startDocument(null, null);
+        xmlMsgElement.startTag("", "MAP-msg-listing");
+        xmlMsgElement.attribute("", "version", "1.0");
+        // Do the XML encoding of list
+        if (list != null) {
+            for (BluetoothMapMessageListingElement element : list) {
+                element.encode(xmlMsgElement); // Append the list element
+            }
+        }
+        xmlMsgElement.endTag("", "MAP-msg-listing");
+        xmlMsgElement.endDocument();
+        xmlMsgElement.flush();
     }
 
     public void sort() {
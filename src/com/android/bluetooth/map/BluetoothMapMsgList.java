@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2013 Samsung System LSI
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+/**
+ * Message ids and their folder types, kept in parallel arrays sorted by id.
+ * Messages are added in increasing id order, which appends in constant
+ * time, and the sorted order lets the list be diffed against a cursor
+ * sorted by id in a single pass.
+ */
+public class BluetoothMapMsgList {
+    public static final int NOT_FOUND = -1;
+
+    private long[] mIds;
+    private int[] mTypes;
+    private int mSize;
+
+    public BluetoothMapMsgList() {
+        this(16);
+    }
+
+    public BluetoothMapMsgList(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mIds = new long[capacity];
+        mTypes = new int[capacity];
+        mSize = 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized long idAt(int index) {
+        return mIds[index];
+    }
+
+    public synchronized int typeAt(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * Returns the type of a message, or NOT_FOUND.
+     */
+    public synchronized int get(long id) {
+        int index = indexOf(id);
+        return (index >= 0) ? mTypes[index] : NOT_FOUND;
+    }
+
+    public synchronized void put(long id, int type) {
+        if (mSize == 0 || id > mIds[mSize - 1]) {
+            insertAt(mSize, id, type);
+            return;
+        }
+        int index = indexOf(id);
+        if (index >= 0) {
+            mTypes[index] = type;
+        } else {
+            insertAt(~index, id, type);
+        }
+    }
+
+    /**
+     * Removes a message and returns its type, or NOT_FOUND.
+     */
+    public synchronized int remove(long id) {
+        int index = indexOf(id);
+        if (index < 0) return NOT_FOUND;
+
+        int type = mTypes[index];
+        System.arraycopy(mIds, index + 1, mIds, index, mSize - index - 1);
+        System.arraycopy(mTypes, index + 1, mTypes, index, mSize - index - 1);
+        --mSize;
+        return type;
+    }
+
+    public synchronized void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Takes over the content of another list, which must not be used
+     * afterwards.
+     */
+    public synchronized void replace(BluetoothMapMsgList other) {
+        synchronized (other) {
+            mIds = other.mIds;
+            mTypes = other.mTypes;
+            mSize = other.mSize;
+        }
+    }
+
+    private int indexOf(long id) {
+        int lo = 0;
+        int hi = mSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = mIds[mid];
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~lo;
+    }
+
+    private void insertAt(int index, long id, int type) {
+        if (mSize == mIds.length) {
+            int capacity = mSize + (mSize >> 1) + 1;
+            long[] ids = new long[capacity];
+            int[] types = new int[capacity];
+            System.arraycopy(mIds, 0, ids, 0, mSize);
+            System.arraycopy(mTypes, 0, types, 0, mSize);
+            mIds = ids;
+            mTypes = types;
+        }
+        System.arraycopy(mIds, index, mIds, index + 1, mSize - index);
+        System.arraycopy(mTypes, index, mTypes, index + 1, mSize - index);
+        mIds[index] = id;
+        mTypes[index] = type;
+        ++mSize;
+    }
+}
@@ -14,6 +14,7 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -159,6 +160,46 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
     }
 
+    /**
+     * Buffers a response body into chunks of the OBEX packet size, and fails
+     * the writes once the operation is aborted by the peer.
+     */
+    private static class AbortableOutputStream extends BufferedOutputStream {
+        private long mCount = 0;
+
+        public AbortableOutputStream(OutputStream out, int size) {
+            super(out, size);
+        }
+
+        @Override
+        public synchronized void write(int oneByte) throws IOException {
+            checkAborted();
+            super.write(oneByte);
+            mCount++;
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            checkAborted();
+            super.write(buffer, offset, length);
+            mCount += length;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            checkAborted();
+            super.flush();
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        private void checkAborted() throws IOException {
+            if (sIsAborted) throw new IOException("Operation aborted");
+        }
+    }
+
     @Override
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort(): enter.");
@@ -356,6 +397,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
 
     @Override
     public void onClose() {
+        mOutContent.close();
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothMapService.MSG_SERVERSESSION_CLOSE;
@@ -444,12 +486,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams, String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int maxChunkSize, listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
         if(folderName == null) {
             folderName = mCurrentFolder.getName();
         }
@@ -474,7 +515,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 outList = mOutContent.msgListing(folderName, appParams);
                 // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                outBytes = outList.encode();
                 hasUnread = outList.hasUnread();
             }
             else {
@@ -507,16 +547,23 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
 
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(outList != null) {
+            int result = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                // Encode straight into the body, one packet at a time
+                AbortableOutputStream listStream = new AbortableOutputStream(outStream, maxChunkSize);
+                outList.encode(listStream);
+                if(V) Log.v(TAG,"sendMessageListingRsp sent " + listStream.getCount() + " bytes");
+                result = ResponseCodes.OBEX_HTTP_OK;
             } catch (IOException e) {
                 if(V) Log.w(TAG,e);
                 // We were probably aborted or disconnected
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG,"sendMessageListingRsp: IllegalArgumentException - sending OBEX_HTTP_BAD_REQUEST", e);
+                result = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            } catch (IllegalStateException e) {
+                Log.w(TAG,"sendMessageListingRsp: IllegalStateException - sending OBEX_HTTP_INTERNAL_ERROR", e);
+                result = ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
             } finally {
                 if(outStream != null) {
                     try {
@@ -526,8 +573,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if(bytesWritten != outBytes.length)
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            if(result != ResponseCodes.OBEX_HTTP_OK)
+                return result;
         } else {
             try {
                 outStream.close();
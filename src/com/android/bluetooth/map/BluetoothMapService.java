@@ -603,18 +603,13 @@ public class BluetoothMapService extends ProfileService {
     }
 
     public boolean setPriority(BluetoothDevice device, int priority) {
-        Settings.Global.putInt(getContentResolver(),
-            Settings.Global.getBluetoothMapPriorityKey(device.getAddress()),
-            priority);
+        setProfilePriority(Settings.Global.getBluetoothMapPriorityKey(device.getAddress()), priority);
         if (DEBUG) Log.d(TAG, "Saved priority " + device + " = " + priority);
         return true;
     }
 
     public int getPriority(BluetoothDevice device) {
-        int priority = Settings.Global.getInt(getContentResolver(),
-            Settings.Global.getBluetoothMapPriorityKey(device.getAddress()),
-            BluetoothProfile.PRIORITY_UNDEFINED);
-        return priority;
+        return getProfilePriority(Settings.Global.getBluetoothMapPriorityKey(device.getAddress()));
     }
 
     @Override
@@ -139,6 +139,13 @@ public class PanService extends ProfileService {
         return true;
     }
 
+    @Override
+    protected boolean isIdle() {
+        // Remote PANU devices can only connect while the service runs
+        return !mTetherOn
+            && getDevicesMatchingConnectionStates(ACTIVE_CONNECTION_STATES).isEmpty();
+    }
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -0,0 +1,76 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+public class PreparedWriteQueueTest extends AndroidTestCase {
+    private static final int CONN_ID = 3;
+    private static final int HANDLE = 0x20;
+
+    public void testContiguousFragments() {
+        PreparedWriteQueue queue = new PreparedWriteQueue();
+
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS,
+                     queue.add(CONN_ID, HANDLE, 0, new byte[] {1, 2}));
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS,
+                     queue.add(CONN_ID, HANDLE, 2, new byte[] {3}));
+        assertTrue(queue.hasPending(CONN_ID));
+
+        List<PreparedWriteQueue.Buffer> buffers = queue.remove(CONN_ID);
+        assertEquals(1, buffers.size());
+        assertEquals(HANDLE, buffers.get(0).handle);
+        assertEquals(3, buffers.get(0).length);
+        assertEquals(3, buffers.get(0).data[2]);
+        assertFalse(queue.hasPending(CONN_ID));
+    }
+
+    public void testInvalidOffset() {
+        PreparedWriteQueue queue = new PreparedWriteQueue();
+
+        // The first fragment must start at offset 0
+        assertEquals(PreparedWriteQueue.STATUS_INVALID_OFFSET,
+                     queue.add(CONN_ID, HANDLE, 4, new byte[] {1}));
+        assertFalse(queue.hasPending(CONN_ID));
+
+        // Gaps and overlaps are both rejected
+        queue.add(CONN_ID, HANDLE, 0, new byte[] {1, 2});
+        assertEquals(PreparedWriteQueue.STATUS_INVALID_OFFSET,
+                     queue.add(CONN_ID, HANDLE, 3, new byte[] {4}));
+        assertEquals(PreparedWriteQueue.STATUS_INVALID_OFFSET,
+                     queue.add(CONN_ID, HANDLE, 1, new byte[] {4}));
+        assertEquals(2, queue.remove(CONN_ID).get(0).length);
+    }
+
+    public void testValueTooLong() {
+        PreparedWriteQueue queue = new PreparedWriteQueue();
+
+        assertEquals(PreparedWriteQueue.STATUS_PREPARE_QUEUE_FULL,
+                     queue.add(CONN_ID, HANDLE, 0,
+                               new byte[PreparedWriteQueue.MAX_ATTR_LEN + 1]));
+        assertFalse(queue.hasPending(CONN_ID));
+    }
+
+    public void testPendingHandleLimit() {
+        PreparedWriteQueue queue = new PreparedWriteQueue();
+
+        for (int i = 0; i < PreparedWriteQueue.MAX_PENDING_HANDLES; i++) {
+            assertEquals(PreparedWriteQueue.STATUS_SUCCESS,
+                         queue.add(CONN_ID, HANDLE + i, 0, new byte[] {1}));
+        }
+        assertEquals(PreparedWriteQueue.STATUS_PREPARE_QUEUE_FULL,
+                     queue.add(CONN_ID, HANDLE + PreparedWriteQueue.MAX_PENDING_HANDLES, 0,
+                               new byte[] {1}));
+
+        // Handles already pending may still grow, other connections are unaffected
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS,
+                     queue.add(CONN_ID, HANDLE, 1, new byte[] {2}));
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS,
+                     queue.add(CONN_ID + 1, HANDLE, 0, new byte[] {1}));
+
+        queue.cancel(CONN_ID);
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS,
+                     queue.add(CONN_ID, HANDLE + PreparedWriteQueue.MAX_PENDING_HANDLES, 0,
+                               new byte[] {1}));
+    }
+}
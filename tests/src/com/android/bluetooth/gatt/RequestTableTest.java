@@ -0,0 +1,109 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+
+public class RequestTableTest extends AndroidTestCase {
+    private static final int SERVER_IF = 5;
+    private static final int CONN_ID = 3;
+
+    /** Transaction IDs hashing to the last slot, so their probes wrap around */
+    private static int wrappingTransId(int i) {
+        return (RequestTable.CAPACITY - 1) + i * RequestTable.CAPACITY;
+    }
+
+    public void testAddRemove() {
+        RequestTable table = new RequestTable();
+        RequestTable.Request evicted = new RequestTable.Request();
+
+        assertFalse(table.add(SERVER_IF, CONN_ID, 10, 100, 1000, evicted));
+        assertFalse(table.add(SERVER_IF, CONN_ID, 11, 101, 1000, evicted));
+        assertEquals(2, table.size());
+        assertEquals(101, table.getHandle(11));
+
+        assertEquals(100, table.remove(10));
+        assertEquals(-1, table.remove(10));
+        assertEquals(-1, table.getHandle(10));
+        assertEquals(1, table.size());
+    }
+
+    public void testRemoveWrapAround() {
+        RequestTable table = new RequestTable();
+        RequestTable.Request evicted = new RequestTable.Request();
+
+        // All three share the last slot as home and spill over into slots 0 and 1
+        for (int i = 0; i < 3; i++) {
+            table.add(SERVER_IF, CONN_ID, wrappingTransId(i), i, 1000, evicted);
+        }
+
+        assertEquals(0, table.remove(wrappingTransId(0)));
+        assertEquals(1, table.getHandle(wrappingTransId(1)));
+        assertEquals(2, table.getHandle(wrappingTransId(2)));
+
+        assertEquals(1, table.remove(wrappingTransId(1)));
+        assertEquals(2, table.getHandle(wrappingTransId(2)));
+        assertEquals(2, table.remove(wrappingTransId(2)));
+        assertEquals(0, table.size());
+    }
+
+    public void testRemoveConnection() {
+        RequestTable table = new RequestTable();
+        RequestTable.Request evicted = new RequestTable.Request();
+
+        // Interleave two connections on one probe sequence
+        for (int i = 0; i < 6; i++) {
+            table.add(SERVER_IF, (i % 2 == 0) ? CONN_ID : CONN_ID + 1,
+                      wrappingTransId(i), i, 1000, evicted);
+        }
+
+        table.removeConnection(CONN_ID);
+        assertEquals(3, table.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals((i % 2 == 0) ? -1 : i, table.getHandle(wrappingTransId(i)));
+        }
+    }
+
+    public void testFullTableEvictsEarliestDeadline() {
+        RequestTable table = new RequestTable();
+        RequestTable.Request evicted = new RequestTable.Request();
+
+        for (int i = 0; i < RequestTable.CAPACITY; i++) {
+            // Request 7 is the oldest
+            long deadline = (i == 7) ? 10 : 1000 + i;
+            assertFalse(table.add(SERVER_IF, CONN_ID, i, i, deadline, evicted));
+        }
+        assertEquals(RequestTable.CAPACITY, table.size());
+
+        assertTrue(table.add(SERVER_IF, CONN_ID, 500, 500, 5000, evicted));
+        assertEquals(7, evicted.transId);
+        assertEquals(7, evicted.handle);
+        assertEquals(CONN_ID, evicted.connId);
+        assertEquals(SERVER_IF, evicted.serverIf);
+        assertEquals(RequestTable.CAPACITY, table.size());
+        assertEquals(-1, table.getHandle(7));
+        assertEquals(500, table.getHandle(500));
+        assertEquals(1, table.getEvictedCount());
+    }
+
+    public void testPollExpiredOrder() {
+        RequestTable table = new RequestTable();
+        RequestTable.Request request = new RequestTable.Request();
+
+        table.add(SERVER_IF, CONN_ID, 1, 1, 300, request);
+        table.add(SERVER_IF, CONN_ID, 2, 2, 100, request);
+        table.add(SERVER_IF, CONN_ID, 3, 3, 200, request);
+        table.add(SERVER_IF, CONN_ID, 4, 4, 900, request);
+        assertEquals(100, table.getNextDeadline());
+
+        assertTrue(table.pollExpired(500, request));
+        assertEquals(2, request.transId);
+        assertTrue(table.pollExpired(500, request));
+        assertEquals(3, request.transId);
+        assertTrue(table.pollExpired(500, request));
+        assertEquals(1, request.transId);
+        assertFalse(table.pollExpired(500, request));
+
+        assertEquals(900, table.getNextDeadline());
+        assertEquals(3, table.getExpiredCount());
+        assertEquals(1, table.size());
+    }
+}
@@ -0,0 +1,115 @@
+package com.android.bluetooth.map;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+public class BluetoothMapContactCacheTest extends AndroidTestCase {
+    private static final String NAME = "Alice";
+
+    /** Answers every phone lookup with the same contact and counts them */
+    private static class LookupProvider extends MockContentProvider {
+        int queries = 0;
+        BluetoothMapContactCache invalidateOnQuery = null;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            ++queries;
+            if (invalidateOnQuery != null) {
+                // Contacts change while the lookup is in flight
+                invalidateOnQuery.invalidate();
+                invalidateOnQuery = null;
+            }
+            MatrixCursor cursor = new MatrixCursor(
+                    new String[] {Contacts._ID, Contacts.DISPLAY_NAME});
+            cursor.addRow(new Object[] {"1", NAME});
+            return cursor;
+        }
+    }
+
+    private LookupProvider mProvider;
+    private BluetoothMapContactCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new LookupProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mCache = new BluetoothMapContactCache(resolver);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        super.tearDown();
+    }
+
+    private static String number(int i) {
+        return "+1650555" + (1000 + i);
+    }
+
+    public void testKeyNormalization() {
+        assertEquals("+16505551234", BluetoothMapContactCache.getKey("+1 (650) 555-1234"));
+        assertEquals("6505551234", BluetoothMapContactCache.getKey(" 650.555.1234 "));
+        assertEquals("alice@example.com",
+                     BluetoothMapContactCache.getKey(" Alice@Example.COM"));
+        // Alphanumeric senders must not collapse into one key
+        assertEquals("VK-HDFCBK", BluetoothMapContactCache.getKey("VK-HDFCBK"));
+        assertEquals("AX-ICICIB", BluetoothMapContactCache.getKey("AX-ICICIB"));
+        assertEquals("", BluetoothMapContactCache.getKey(null));
+    }
+
+    public void testSpellingsShareEntry() {
+        assertEquals(NAME, mCache.getName("+1 (650) 555-1234"));
+        assertEquals(NAME, mCache.getName("+16505551234"));
+        assertEquals(NAME, mCache.getName("alice@example.com"));
+        assertEquals(NAME, mCache.getName("ALICE@example.com"));
+        assertEquals(2, mProvider.queries);
+        assertEquals(2, mCache.getHitCount());
+    }
+
+    public void testLruEviction() {
+        for (int i = 0; i < BluetoothMapContactCache.MAX_ENTRIES; i++) {
+            mCache.getName(number(i));
+        }
+        assertEquals(BluetoothMapContactCache.MAX_ENTRIES, mProvider.queries);
+
+        // Touch the eldest entry so that the second one is evicted instead
+        mCache.getName(number(0));
+        mCache.getName(number(BluetoothMapContactCache.MAX_ENTRIES));
+        int queries = mProvider.queries;
+
+        mCache.getName(number(0));
+        mCache.getName(number(BluetoothMapContactCache.MAX_ENTRIES));
+        assertEquals(queries, mProvider.queries);
+
+        mCache.getName(number(1));
+        assertEquals(queries + 1, mProvider.queries);
+    }
+
+    public void testInvalidate() {
+        mCache.getName(number(0));
+        mCache.invalidate();
+        mCache.getName(number(0));
+        assertEquals(2, mProvider.queries);
+    }
+
+    public void testLookupOverlappingInvalidationNotCached() {
+        mProvider.invalidateOnQuery = mCache;
+        assertEquals(NAME, mCache.getName(number(0)));
+
+        // The result may predate the change, so it must be looked up again
+        assertEquals(NAME, mCache.getName(number(0)));
+        assertEquals(2, mProvider.queries);
+
+        assertEquals(NAME, mCache.getName(number(0)));
+        assertEquals(2, mProvider.queries);
+    }
+}
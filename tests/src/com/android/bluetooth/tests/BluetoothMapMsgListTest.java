@@ -0,0 +1,75 @@
+package com.android.bluetooth.tests;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapMsgList;
+
+public class BluetoothMapMsgListTest extends AndroidTestCase {
+    private static final String TAG = "BluetoothMapMsgListTest";
+
+    private static final boolean D = true;
+
+    public void testPutGetRemove() {
+        BluetoothMapMsgList list = new BluetoothMapMsgList(2);
+
+        list.put(10, 1);
+        list.put(30, 2);
+        list.put(20, 3);
+        list.put(5, 4);
+        assertEquals(4, list.size());
+        assertEquals(5, list.idAt(0));
+        assertEquals(10, list.idAt(1));
+        assertEquals(20, list.idAt(2));
+        assertEquals(30, list.idAt(3));
+
+        list.put(20, 5);
+        assertEquals(4, list.size());
+        assertEquals(5, list.get(20));
+        assertEquals(BluetoothMapMsgList.NOT_FOUND, list.get(15));
+
+        assertEquals(4, list.remove(5));
+        assertEquals(BluetoothMapMsgList.NOT_FOUND, list.remove(5));
+        assertEquals(3, list.size());
+        assertEquals(10, list.idAt(0));
+    }
+
+    public void testReplace() {
+        BluetoothMapMsgList list = new BluetoothMapMsgList();
+        list.put(1, 1);
+
+        BluetoothMapMsgList other = new BluetoothMapMsgList();
+        other.put(2, 2);
+        other.put(3, 3);
+
+        list.replace(other);
+        assertEquals(2, list.size());
+        assertEquals(BluetoothMapMsgList.NOT_FOUND, list.get(1));
+        assertEquals(3, list.get(3));
+    }
+
+    public void testMemoryUsage() {
+        int[] counts = { 1000, 10000, 100000 };
+        for (int count : counts) {
+            long before = getUsedMemory();
+            BluetoothMapMsgList list = new BluetoothMapMsgList(count);
+            for (int i = 0; i < count; i++) {
+                list.put(i * 2, i % 6);
+            }
+            long used = getUsedMemory() - before;
+            if (D) Log.d(TAG, count + " messages: " + used + " bytes, "
+                    + (used / count) + " bytes per message");
+
+            assertEquals(count, list.size());
+            assertEquals((count - 1) % 6, list.get((count - 1) * 2));
+        }
+    }
+
+    private static long getUsedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}